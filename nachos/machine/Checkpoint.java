@@ -0,0 +1,302 @@
+package nachos.machine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Saves the state of the simulated machine to a file, and loads it back into
+ * a freshly booted machine. A checkpoint holds the processor's registers and
+ * TLB, the contents of physical memory, the statistics (including the
+ * simulated time), and the times at which pending interrupts are due,
+ * followed by whatever the kernel adds in its <tt>Section</tt>.
+ *
+ * <p>
+ * Memory is written one page at a time, with each page run-length encoded,
+ * so pages that are mostly zero take a few bytes. Interrupt handlers can't
+ * be saved; instead, each saved interrupt is matched by type with one the
+ * devices of the new machine have already scheduled, and that one is moved
+ * to the saved time.
+ *
+ * <p>
+ * Checkpoints are taken and restored through <tt>Machine.saveCheckpoint()</tt>
+ * and <tt>Machine.restoreCheckpoint()</tt>.
+ */
+public final class Checkpoint {
+    private Checkpoint() {
+    }
+
+    /**
+     * The part of a checkpoint written by the kernel, after the machine
+     * state.
+     */
+    public interface Section {
+	/**
+	 * Write the kernel's state.
+	 *
+	 * @param	out	the stream to write to.
+	 */
+	public void save(DataOutputStream out) throws IOException;
+
+	/**
+	 * Read back the kernel's state. Called after the machine state has
+	 * been restored.
+	 *
+	 * @param	in	the stream to read from.
+	 */
+	public void restore(DataInputStream in) throws IOException;
+    }
+
+    static void save(DataOutputStream out, Section kernelState)
+	throws IOException {
+	out.writeInt(magic);
+	out.writeInt(version);
+
+	saveStats(out, Machine.stats());
+	Machine.interrupt().savePending(out);
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    out.writeInt(processor.readRegister(i));
+
+	out.writeBoolean(processor.hasTLB());
+	if (processor.hasTLB()) {
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry entry = processor.readTLBEntry(i);
+		out.writeInt(entry.vpn);
+		out.writeInt(entry.ppn);
+		out.writeInt(entry.size);
+		out.writeByte(flags(entry));
+	    }
+	}
+
+	int numPhysPages = processor.getNumPhysPages();
+	out.writeInt(numPhysPages);
+	byte[] page = new byte[pageSize];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    processor.readMemory(ppn*pageSize, page, 0, pageSize);
+	    encodePage(out, page);
+	}
+
+	if (kernelState != null)
+	    kernelState.save(out);
+    }
+
+    static void restore(DataInputStream in, Section kernelState)
+	throws IOException {
+	if (in.readInt() != magic || in.readInt() != version)
+	    throw new IOException("not a checkpoint");
+
+	long oldTime = Machine.stats().totalTicks;
+	restoreStats(in, Machine.stats());
+	Machine.interrupt().restorePending(in,
+					   Machine.stats().totalTicks - oldTime);
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, in.readInt());
+
+	if (in.readBoolean() != processor.hasTLB())
+	    throw new IOException("TLB configuration differs");
+	if (processor.hasTLB()) {
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry entry = new TranslationEntry();
+		entry.vpn = in.readInt();
+		entry.ppn = in.readInt();
+		entry.size = in.readInt();
+		setFlags(entry, in.readByte());
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
+
+	int numPhysPages = in.readInt();
+	if (numPhysPages != processor.getNumPhysPages())
+	    throw new IOException("checkpoint has " + numPhysPages +
+				  " physical pages");
+	byte[] page = new byte[pageSize];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    decodePage(in, page);
+	    processor.writeMemory(ppn*pageSize, page, 0, pageSize);
+	}
+
+	if (kernelState != null)
+	    kernelState.restore(in);
+    }
+
+    /**
+     * Write a page as PackBits runs: a control byte <i>n</i> from 0 to 127 is
+     * followed by <i>n</i>+1 literal bytes, and a control byte from -1 to
+     * -127 is followed by one byte repeated 1-<i>n</i> times.
+     */
+    private static void encodePage(DataOutputStream out, byte[] page)
+	throws IOException {
+	int i = 0;
+	while (i < page.length) {
+	    int run = 1;
+	    while (i+run < page.length && run < 128 && page[i+run] == page[i])
+		run++;
+
+	    if (run > 1) {
+		out.writeByte(1-run);
+		out.writeByte(page[i]);
+		i += run;
+		continue;
+	    }
+
+	    // literals last until the next run of three or more
+	    int literal = 1;
+	    while (i+literal < page.length && literal < 128 &&
+		   !(i+literal+2 < page.length &&
+		     page[i+literal] == page[i+literal+1] &&
+		     page[i+literal] == page[i+literal+2]))
+		literal++;
+
+	    out.writeByte(literal-1);
+	    out.write(page, i, literal);
+	    i += literal;
+	}
+    }
+
+    private static void decodePage(DataInputStream in, byte[] page)
+	throws IOException {
+	int i = 0;
+	while (i < page.length) {
+	    int control = in.readByte();
+	    if (control >= 0) {
+		in.readFully(page, i, control+1);
+		i += control+1;
+	    }
+	    else if (control != -128) {
+		Arrays.fill(page, i, i+1-control, in.readByte());
+		i += 1-control;
+	    }
+	}
+    }
+
+    private static void saveStats(DataOutputStream out, Stats stats)
+	throws IOException {
+	Field[] fields = statsFields();
+	out.writeInt(fields.length);
+	try {
+	    for (Field field : fields) {
+		long[] values = statsValues(field, stats);
+		out.writeUTF(field.getName());
+		out.writeInt(values.length);
+		for (long value : values)
+		    out.writeLong(value);
+	    }
+	}
+	catch (IllegalAccessException e) {
+	    throw new IOException(e.toString());
+	}
+    }
+
+    /**
+     * Counters are matched by name, so a checkpoint still loads after
+     * counters have been added to <tt>Stats</tt>.
+     */
+    private static void restoreStats(DataInputStream in, Stats stats)
+	throws IOException {
+	int count = in.readInt();
+	try {
+	    for (int i=0; i<count; i++) {
+		String name = in.readUTF();
+		long[] values = new long[in.readInt()];
+		for (int j=0; j<values.length; j++)
+		    values[j] = in.readLong();
+
+		for (Field field : statsFields()) {
+		    if (field.getName().equals(name))
+			setStatsValues(field, stats, values);
+		}
+	    }
+	}
+	catch (IllegalAccessException e) {
+	    throw new IOException(e.toString());
+	}
+    }
+
+    /** Return a counter, or the flattened elements of a counter array. */
+    private static long[] statsValues(Field field, Stats stats)
+	throws IllegalAccessException {
+	Object value = field.get(stats);
+	if (value instanceof long[])
+	    return (long[]) value;
+	if (!(value instanceof long[][]))
+	    return new long[] { ((Number) value).longValue() };
+
+	long[][] rows = (long[][]) value;
+	long[] values = new long[rows.length * rows[0].length];
+	for (int i=0; i<rows.length; i++)
+	    System.arraycopy(rows[i], 0, values, i*rows[0].length,
+			     rows[0].length);
+	return values;
+    }
+
+    private static void setStatsValues(Field field, Stats stats,
+				       long[] values)
+	throws IllegalAccessException {
+	Object value = field.get(stats);
+	if (value instanceof long[]) {
+	    long[] array = (long[]) value;
+	    System.arraycopy(values, 0, array, 0,
+			     Math.min(values.length, array.length));
+	}
+	else if (value instanceof long[][]) {
+	    long[][] rows = (long[][]) value;
+	    for (int i=0; i<rows.length; i++) {
+		int offset = i*rows[i].length;
+		if (offset >= values.length)
+		    break;
+		System.arraycopy(values, offset, rows[i], 0,
+				 Math.min(rows[i].length, values.length-offset));
+	    }
+	}
+	else if (values.length == 1) {
+	    if (field.getType() == long.class)
+		field.setLong(stats, values[0]);
+	    else
+		field.setInt(stats, (int) values[0]);
+	}
+    }
+
+    private static Field[] statsFields() {
+	Field[] all = Stats.class.getFields();
+	int count = 0;
+	for (Field field : all) {
+	    Class<?> type = field.getType();
+	    if (!Modifier.isStatic(field.getModifiers()) &&
+		(type == int.class || type == long.class ||
+		 type == long[].class || type == long[][].class))
+		all[count++] = field;
+	}
+
+	Field[] fields = Arrays.copyOf(all, count);
+	Arrays.sort(fields, new Comparator<Field>() {
+		public int compare(Field a, Field b) {
+		    return a.getName().compareTo(b.getName());
+		}
+	    });
+	return fields;
+    }
+
+    private static int flags(TranslationEntry entry) {
+	return (entry.valid ? 1 : 0) | (entry.readOnly ? 2 : 0) |
+	    (entry.used ? 4 : 0) | (entry.dirty ? 8 : 0);
+    }
+
+    private static void setFlags(TranslationEntry entry, int flags) {
+	entry.valid = (flags & 1) != 0;
+	entry.readOnly = (flags & 2) != 0;
+	entry.used = (flags & 4) != 0;
+	entry.dirty = (flags & 8) != 0;
+    }
+
+    private static final int magic = 0x4e434b50;
+    private static final int version = 2;
+    private static final int pageSize = Processor.pageSize;
+}
@@ -180,7 +180,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	byte[] buf = new byte[pageSize];
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -196,10 +196,43 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
+	// the rest of the page is left zero
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, buf, 0, initlen);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	Machine.processor().writeMemory(paddr, buf, 0, pageSize);
+    }
+
+    /**
+     * Load a run of consecutive pages from this segment into physical
+     * memory, with a single read from the executable file.
+     *
+     * @param	spn	the first page number within this segment.
+     * @param	ppns	the physical pages to load into, in page order.
+     */
+    public void loadPages(int spn, int[] ppns) {
+	Lib.assertTrue(file != null);
+
+	Lib.assertTrue(spn>=0 && spn+ppns.length<=numPages);
+
+	int pageSize = Processor.pageSize;
+	byte[] buf = new byte[ppns.length*pageSize];
+
+	// the initialized parts of consecutive pages are adjacent in the file
+	int initlen = 0;
+	if (initialized)
+	    initlen = Math.min(size - spn*pageSize, buf.length);
+
+	if (initlen > 0)
+	    Lib.strictReadFile(file, contentOffset + spn*pageSize, buf, 0,
+			       initlen);
+
+	for (int i=0; i<ppns.length; i++) {
+	    Lib.assertTrue(ppns[i]>=0 &&
+			   ppns[i]<Machine.processor().getNumPhysPages());
+	    Machine.processor().writeMemory(ppns[i]*pageSize, buf, i*pageSize,
+					    pageSize);
+	}
     }
 
     /** The COFF object to which this section belongs. */
@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.TreeSet;
 import java.util.Iterator;
 import java.util.SortedSet;
@@ -126,9 +130,8 @@ public final class Interrupt {
 	long time = privilege.stats.totalTicks + when;
 	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Tracer.enabled(dbgInt))
+	    Tracer.trace(traceSchedule, Tracer.intern(type), time);
 
 	pending.add(toOccur);
     }
@@ -167,7 +170,7 @@ public final class Interrupt {
 	if (((PendingInterrupt) pending.first()).time > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	Tracer.trace(traceInvoke, time);
 	
 	while (!pending.isEmpty() &&
 	       ((PendingInterrupt) pending.first()).time <= time) {
@@ -179,12 +182,23 @@ public final class Interrupt {
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
-			
+	    if (Tracer.enabled(dbgInt))
+		Tracer.trace(traceHandler, Tracer.intern(next.type));
+
+	    InterruptEvent event = new InterruptEvent();
+	    event.begin();
+
 	    next.handler.run();
+
+	    if (event.shouldCommit()) {
+		event.type = next.type;
+		event.tick = time;
+		event.dueTick = next.time;
+		Machine.commitEvent(event);
+	    }
 	}
 
-	Lib.debug(dbgInt, "  (end of list)");
+	Tracer.trace(traceEnd);
     }
 
     private void print() {
@@ -201,6 +215,65 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
+    /**
+     * Write the type of each pending interrupt and how long from now it is
+     * due. Used by <tt>Checkpoint</tt>.
+     */
+    void savePending(DataOutputStream out) throws IOException {
+	long time = privilege.stats.totalTicks;
+
+	out.writeInt(pending.size());
+	for (PendingInterrupt toOccur : pending) {
+	    out.writeUTF(toOccur.type);
+	    out.writeLong(toOccur.time - time);
+	}
+    }
+
+    /**
+     * Move the pending interrupts to the times written by
+     * <tt>savePending()</tt>. Each saved interrupt is matched with the
+     * earliest pending interrupt of the same type; pending interrupts that
+     * aren't matched are shifted by <i>clockShift</i>, the amount the clock
+     * was moved by, and saved interrupts that aren't matched are dropped.
+     * Used by <tt>Checkpoint</tt>.
+     */
+    void restorePending(DataInputStream in, long clockShift)
+	throws IOException {
+	long time = privilege.stats.totalTicks;
+
+	ArrayList<PendingInterrupt> unmatched =
+	    new ArrayList<PendingInterrupt>(pending);
+	pending.clear();
+
+	int count = in.readInt();
+	for (int i=0; i<count; i++) {
+	    String type = in.readUTF();
+	    long delay = in.readLong();
+
+	    PendingInterrupt match = null;
+	    for (PendingInterrupt toOccur : unmatched) {
+		if (toOccur.type.equals(type)) {
+		    match = toOccur;
+		    break;
+		}
+	    }
+
+	    if (match == null) {
+		Lib.debug(dbgInt, "Dropping the saved " + type + " interrupt");
+		continue;
+	    }
+
+	    unmatched.remove(match);
+	    match.time = time + delay;
+	    pending.add(match);
+	}
+
+	for (PendingInterrupt toOccur : unmatched) {
+	    toOccur.time += clockShift;
+	    pending.add(toOccur);
+	}
+    }
+
     private class PendingInterrupt implements Comparable {
 	PendingInterrupt(long time, String type, Runnable handler) {
 	    this.time = time;
@@ -241,6 +314,17 @@ public final class Interrupt {
 
     private static final char dbgInt = 'i';
 
+    private static final int traceSchedule =
+	Tracer.defineEvent(dbgInt, "int.schedule",
+			   "Scheduling the %s interrupt handler at time = %d");
+    private static final int traceInvoke =
+	Tracer.defineEvent(dbgInt, "int.invoke",
+			   "Invoking interrupt handlers at time = %d");
+    private static final int traceHandler =
+	Tracer.defineEvent(dbgInt, "int.handler", "  %s");
+    private static final int traceEnd =
+	Tracer.defineEvent(dbgInt, "int.end", "  (end of list)");
+
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
 	    Interrupt.this.schedule(when, type, handler);
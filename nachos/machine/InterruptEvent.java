@@ -0,0 +1,35 @@
+package nachos.machine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for a simulated interrupt handler, timed from
+ * when it was invoked to when it returned. The JVM thread the event is
+ * recorded on is the one running the interrupted Nachos thread.
+ *
+ * <p>
+ * A handler can switch threads before it returns, as the alarm's timer
+ * handler does when it yields. The event's duration then includes the time
+ * other Nachos threads ran until the interrupted thread was switched back
+ * in, and the event is only committed once that happens.
+ */
+@Name("nachos.Interrupt")
+@Label("Interrupt")
+@Category({ "Nachos", "Machine" })
+@Description("A simulated interrupt handler")
+final class InterruptEvent extends Event {
+    @Label("Type")
+    String type;
+
+    @Label("Simulated Tick")
+    @Description("The simulated time at which the handler was invoked")
+    long tick;
+
+    @Label("Due Tick")
+    @Description("The simulated time for which the interrupt was scheduled")
+    long dueTick;
+}
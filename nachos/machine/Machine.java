@@ -5,7 +5,19 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.ag.*;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -52,6 +64,8 @@ public final class Machine {
 	TCB.givePrivilege(privilege);
 	privilege.stats = stats;
 
+	initializeFlightRecorder();
+
 	securityManager.enable();
 	createDevices();
 	checkUserClasses();
@@ -92,14 +106,202 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Load the Java Flight Recorder and register the machine's and the
+     * kernel's events before the security manager is enabled, since the
+     * recorder creates class loaders the first time it is used, which Nachos
+     * never permits. The kernel's event classes are loaded without being
+     * initialized.
+     */
+    private static void initializeFlightRecorder() {
+	if (!FlightRecorder.isAvailable())
+	    return;
+
+	FlightRecorder.register(InterruptEvent.class);
+	FlightRecorder.register(TranslationFaultEvent.class);
+
+	for (String className : kernelEventClassNames) {
+	    Class<?> eventClass;
+	    try {
+		eventClass = Class.forName(className, false,
+					   Machine.class.getClassLoader());
+	    }
+	    catch (ClassNotFoundException e) {
+		continue;
+	    }
+
+	    Lib.assertTrue(Event.class.isAssignableFrom(eventClass),
+			   className + " is not an event class");
+	    FlightRecorder.register(eventClass.asSubclass(Event.class));
+	}
+    }
+
+    /**
+     * Commit a Java Flight Recorder event of one of the kernel's event types.
+     * The recorder needs permissions to write an event, so the kernel's
+     * events should be committed through this method, and only if
+     * <tt>event.shouldCommit()</tt> returns <tt>true</tt>.
+     *
+     * @param	event	the event to commit.
+     */
+    public static void commitKernelEvent(Event event) {
+	String className = event.getClass().getName();
+	boolean known = false;
+	for (String name : kernelEventClassNames)
+	    known |= name.equals(className);
+	Lib.assertTrue(known, "not a kernel event: " + className);
+
+	commitEvent(event);
+    }
+
+    /**
+     * Commit a Java Flight Recorder event with privilege.
+     *
+     * @param	event	the event to commit.
+     */
+    static void commitEvent(final Event event) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() { event.commit(); }
+	    });
+    }
+
+    /**
+     * Print stats, and terminate Nachos. If the <tt>nachos.conf</tt> key
+     * <tt>Machine.statsFile</tt> is set, the stats are also written to that
+     * file, as CSV if its name ends in <tt>.csv</tt> and as JSON otherwise.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	String statsFile = Config.getString("Machine.statsFile");
+	if (statsFile != null)
+	    writeStats(statsFile);
+
 	terminate();
     }
 
+    private static void writeStats(final String fileName) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			PrintStream out = new PrintStream(
+			    new BufferedOutputStream(
+				new FileOutputStream(fileName)));
+			if (fileName.endsWith(".csv"))
+			    stats.printCSV(out);
+			else
+			    stats.printJSON(out);
+			out.close();
+		    }
+		    catch (IOException e) {
+			System.out.println("unable to write " + fileName + ": " + e);
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Save the state of the machine, followed by the kernel's state, to a
+     * checkpoint file. Interrupts should be disabled, so that nothing changes
+     * while the checkpoint is written.
+     *
+     * @param	fileName	the name of the checkpoint file.
+     * @param	kernelState	writes the kernel's part of the checkpoint, or
+     *				<tt>null</tt> to save only the machine.
+     * @return	<tt>true</tt> if the checkpoint was written.
+     */
+    public static boolean saveCheckpoint(final String fileName,
+					 Checkpoint.Section kernelState) {
+	final DataOutputStream[] out = new DataOutputStream[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			out[0] = new DataOutputStream(
+			    new BufferedOutputStream(
+				new FileOutputStream(fileName)));
+		    }
+		    catch (IOException e) {
+			Lib.debug(dbgCheckpoint, "checkpoint failed: " + e);
+		    }
+		}
+	    });
+	if (out[0] == null)
+	    return false;
+
+	// the kernel's section may block, so only the file is privileged
+	boolean success = false;
+	try {
+	    Checkpoint.save(out[0], kernelState);
+	    success = true;
+	}
+	catch (IOException e) {
+	    Lib.debug(dbgCheckpoint, "checkpoint failed: " + e);
+	}
+
+	return closeCheckpoint(out[0]) && success;
+    }
+
+    /**
+     * Load the machine and kernel state saved by <tt>saveCheckpoint()</tt>.
+     * Must be called with interrupts disabled, before any user program has
+     * run. The machine must have the same number of physical pages, and the
+     * same kind of address translation, as the one that was saved.
+     *
+     * @param	fileName	the name of the checkpoint file.
+     * @param	kernelState	reads the kernel's part of the checkpoint, or
+     *				<tt>null</tt> if only the machine was saved.
+     * @return	<tt>true</tt> if the checkpoint was restored.
+     */
+    public static boolean restoreCheckpoint(final String fileName,
+					    Checkpoint.Section kernelState) {
+	final DataInputStream[] in = new DataInputStream[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			in[0] = new DataInputStream(
+			    new BufferedInputStream(
+				new FileInputStream(fileName)));
+		    }
+		    catch (IOException e) {
+			Lib.debug(dbgCheckpoint, "restore failed: " + e);
+		    }
+		}
+	    });
+	if (in[0] == null)
+	    return false;
+
+	boolean success = false;
+	try {
+	    Checkpoint.restore(in[0], kernelState);
+	    success = true;
+	}
+	catch (IOException e) {
+	    Lib.debug(dbgCheckpoint, "restore failed: " + e);
+	}
+
+	return closeCheckpoint(in[0]) && success;
+    }
+
+    private static boolean closeCheckpoint(final Closeable stream) {
+	final boolean[] success = new boolean[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			stream.close();
+			success[0] = true;
+		    }
+		    catch (IOException e) {
+			Lib.debug(dbgCheckpoint, "checkpoint failed: " + e);
+		    }
+		}
+	    });
+
+	return success[0];
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -134,6 +336,10 @@ public final class Machine {
 			Lib.assertNotReached("bad value for -m switch");
 		    }
 		}
+		else if (arg.equals("-r")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    restoreFileName = args[i++];
+		}
 		else if (arg.equals("-s")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    try {
@@ -167,6 +373,21 @@ public final class Machine {
     }
 
     private static void createDevices() {
+	String recordFile = Config.getString("Machine.recordFile");
+	String replayFile = Config.getString("Machine.replayFile");
+	Lib.assertTrue(recordFile == null || replayFile == null,
+		       "can't record and replay at once");
+	if (recordFile != null)
+	    replayLog = new ReplayLog(privilege, recordFile, false);
+	else if (replayFile != null)
+	    replayLog = new ReplayLog(privilege, replayFile, true);
+
+	String traceFile = Config.getString("Machine.traceFile");
+	if (traceFile != null)
+	    Tracer.tracer = new Tracer(privilege, traceFile,
+				       Config.getInteger("Machine.traceBufferSize",
+							 64*1024));
+
 	interrupt = new Interrupt(privilege);
 	timer = new Timer(privilege);
 
@@ -351,6 +572,48 @@ public final class Machine {
      */
     public static AutoGrader autoGrader() { return autoGrader; }
 
+    /**
+     * Return the runtime statistics.
+     *
+     * @return	the runtime statistics.
+     */
+    static Stats stats() { return stats; }
+
+    /**
+     * Count events that the kernel handles in software, which the hardware
+     * can't see, such as page faults on a machine with a TLB. This is the
+     * only way a kernel can change the statistics.
+     *
+     * @param	event	the kind of event, one of the <tt>Stats.EventZZZ</tt>
+     *			constants.
+     * @param	amount	the number of events.
+     */
+    public static void countKernelEvent(int event, int amount) {
+	Lib.assertTrue(amount >= 0);
+	stats.countKernelEvent(event, amount);
+    }
+
+    /**
+     * Record the name of the kernel's page replacement policy, which is
+     * printed with the statistics so that the counts of different policies
+     * can be told apart.
+     *
+     * @param	name	the name of the policy.
+     */
+    public static void setReplacementPolicy(String name) {
+	stats.replacementPolicy = name;
+    }
+
+    /**
+     * Return the log of nondeterministic inputs being recorded or replayed.
+     * Set by the <tt>nachos.conf</tt> keys <tt>Machine.recordFile</tt> and
+     * <tt>Machine.replayFile</tt>.
+     *
+     * @return	the replay log, or <tt>null</tt> if inputs are neither being
+     *		recorded nor replayed.
+     */
+    public static ReplayLog replayLog() { return replayLog; }
+
     private static Interrupt interrupt = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
@@ -359,9 +622,16 @@ public final class Machine {
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
+    private static ReplayLog replayLog = null;
 
     private static String autoGraderClassName = "nachos.ag.AutoGrader";
 
+    /** The event classes the kernel may commit through the machine. */
+    private static final String[] kernelEventClassNames = {
+	"nachos.threads.ContextSwitchEvent",
+	"nachos.userprog.SyscallEvent"
+    };
+
     /**
      * Return the name of the shell program that a user-programming kernel
      * must run. Make sure <tt>UserKernel.run()</tt> <i>always</i> uses this
@@ -379,6 +649,23 @@ public final class Machine {
 
     private static String shellProgramName = null;
 
+    /**
+     * Return the name of the checkpoint a kernel should resume from instead
+     * of starting afresh, given by the <tt>-r</tt> switch or the
+     * configuration variable <tt>Kernel.restoreFrom</tt>.
+     *
+     * @return	the name of the checkpoint file, or <tt>null</tt> if the
+     *		kernel should start normally.
+     */
+    public static String getRestoreFileName() {
+	if (restoreFileName == null)
+	    restoreFileName = Config.getString("Kernel.restoreFrom", null);
+
+	return restoreFileName;
+    }
+
+    private static String restoreFileName = null;
+
     /**
      * Return the name of the process class that the kernel should use. In
      * the multi-programming project, returns
@@ -410,6 +697,8 @@ public final class Machine {
 
     private static Stats stats = new Stats();
 
+    private static final char dbgCheckpoint = 'k';
+
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
 
@@ -429,6 +718,10 @@ public final class Machine {
 	"\t-m <pages>\n" +
 	"\t\tSpecify how many physical pages of memory to simulate.\n" +
 	"\n" +
+	"\t-r <checkpoint>\n" +
+	"\t\tResume from a checkpoint saved by an earlier run, instead of\n" +
+	"\t\trunning the shell program.\n" +
+	"\n" +
 	"\t-s <seed>\n" +
 	"\t\tSpecify the seed for the random number generator (seed is a\n" +
 	"\t\tlong).\n" +
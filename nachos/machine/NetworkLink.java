@@ -163,10 +163,22 @@ public class NetworkLink {
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
-	if (incomingBytes != null) {
+	byte[] packetBytes = incomingBytes;
+
+	// when replaying, arrivals come from the log, and live ones are dropped
+	ReplayLog log = Machine.replayLog();
+	if (log != null) {
+	    if (log.isReplaying() && incomingBytes != null) {
+		incomingBytes = null;
+		notify();
+	    }
+	    packetBytes = log.packetArrival(packetBytes);
+	}
+
+	if (packetBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
-		    incomingPacket = new Packet(incomingBytes);
+		    incomingPacket = new Packet(packetBytes);
 
 		    privilege.stats.numPacketsReceived++;
 		}
@@ -174,8 +186,10 @@ public class NetworkLink {
 		}
 	    }
 
-	    incomingBytes = null;
-	    notify();
+	    if (incomingBytes != null) {
+		incomingBytes = null;
+		notify();
+	    }
 
 	    if (incomingPacket == null)
 		scheduleReceiveInterrupt();
@@ -0,0 +1,131 @@
+package nachos.machine;
+
+import nachos.machine.*;
+
+/**
+ * A two-level page table covering the whole 32-bit address space. The top
+ * bits of a virtual page number index a directory of second-level tables,
+ * and the bottom bits index the second-level table. Second-level tables are
+ * allocated the first time an entry in their range is set, and dropped when
+ * their last entry is cleared, so a sparse address space (code at the bottom,
+ * mapped files and a stack far above it) only uses memory for the regions
+ * that are actually mapped.
+ *
+ * <p>
+ * When the processor has no TLB, it can walk a <tt>PageTable</tt> directly;
+ * see <tt>Processor.setPageTable()</tt>.
+ */
+public final class PageTable {
+    /**
+     * Allocate a new, empty page table.
+     */
+    public PageTable() {
+    }
+
+    /**
+     * Return the translation entry of a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the entry, or <tt>null</tt> if the page is not part of the
+     *		address space.
+     */
+    public TranslationEntry get(int vpn) {
+	if (vpn < 0 || vpn >= Processor.maxPages)
+	    return null;
+
+	TranslationEntry[] table = directory[vpn >>> tableBits];
+	return (table == null) ? null : table[vpn & tableMask];
+    }
+
+    /**
+     * Set the translation entry of a virtual page, allocating a second-level
+     * table if needed.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	entry	the new entry, or <tt>null</tt> to remove the page from
+     *			the address space.
+     */
+    public void set(int vpn, TranslationEntry entry) {
+	Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+
+	int dir = vpn >>> tableBits;
+	TranslationEntry[] table = directory[dir];
+	if (table == null) {
+	    if (entry == null)
+		return;
+
+	    table = directory[dir] = new TranslationEntry[tableSize];
+	    numTables++;
+	}
+
+	TranslationEntry old = table[vpn & tableMask];
+	table[vpn & tableMask] = entry;
+
+	if (old == null && entry != null) {
+	    numEntries[dir]++;
+	    numPages++;
+	}
+	else if (old != null && entry == null) {
+	    numPages--;
+	    if (--numEntries[dir] == 0) {
+		directory[dir] = null;
+		numTables--;
+	    }
+	}
+    }
+
+    /**
+     * Find the next virtual page that is part of the address space. Empty
+     * second-level tables are skipped in one step.
+     *
+     * @param	vpn	the virtual page number to start searching at.
+     * @return	the first page at or after <i>vpn</i> with an entry, or -1 if
+     *		there is none.
+     */
+    public int nextVPN(int vpn) {
+	if (vpn < 0)
+	    return -1;
+
+	for (int dir = vpn >>> tableBits; dir < directorySize; dir++) {
+	    TranslationEntry[] table = directory[dir];
+	    if (table != null) {
+		int start = (dir == vpn >>> tableBits) ? (vpn & tableMask) : 0;
+		for (int i = start; i < tableSize; i++) {
+		    if (table[i] != null)
+			return (dir << tableBits) | i;
+		}
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the number of virtual pages in the address space.
+     *
+     * @return	the number of pages with an entry.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Return the number of second-level tables allocated.
+     *
+     * @return	the number of second-level tables.
+     */
+    public int getNumTables() {
+	return numTables;
+    }
+
+    private static final int tableBits = 11;
+    private static final int tableSize = 1 << tableBits;
+    private static final int tableMask = tableSize - 1;
+    private static final int directorySize = Processor.maxPages >>> tableBits;
+
+    private TranslationEntry[][] directory =
+	new TranslationEntry[directorySize][];
+    private int[] numEntries = new int[directorySize];
+    private int numTables = 0;
+    private int numPages = 0;
+}
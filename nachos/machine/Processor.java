@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +25,12 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * Where the memory is kept is chosen by the <tt>nachos.conf</tt> key
+ * <tt>Processor.memoryBacking</tt>: <tt>heap</tt> (the default) uses a Java
+ * array, <tt>direct</tt> a direct buffer outside the Java heap, and
+ * <tt>file</tt> a mapping of the file named by <tt>Processor.memoryFile</tt>.
+ * Whatever the backing, physical addresses are <tt>int</tt>s, so physical
+ * memory is limited to just under 2GB.
  */
 public final class Processor {
     /**
@@ -45,7 +58,23 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	// physical addresses, and buffer positions, are ints
+	Lib.assertTrue((long) pageSize * numPhysPages <= Integer.MAX_VALUE,
+		       "physical memory must be smaller than 2GB");
+
+	String backing = Config.getString("Processor.memoryBacking", "heap");
+	if (backing.equals("heap"))
+	    memory = ByteBuffer.wrap(new byte[pageSize * numPhysPages]);
+	else if (backing.equals("direct"))
+	    memory = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+	else if (backing.equals("file"))
+	    memory = mapMemoryFile(Config.getString("Processor.memoryFile",
+						    "nachos.mem"));
+	else
+	    Lib.assertNotReached("bad value for Processor.memoryBacking");
+
+	memory.order(ByteOrder.LITTLE_ENDIAN);
+	mainMemory = memory.hasArray() ? memory.array() : null;
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -71,6 +100,53 @@ public final class Processor {
 	this.exceptionHandler = exceptionHandler;
     }
 
+    /**
+     * Watches the user program as it runs, for profiling.
+     *
+     * @see	nachos.machine.Processor#setMonitor
+     */
+    public interface Monitor {
+	/**
+	 * Called at regular intervals of user time, before the instruction at
+	 * <i>pc</i> is executed.
+	 *
+	 * @param	pc	the address of the next user instruction.
+	 */
+	public void sample(int pc);
+
+	/**
+	 * Called after each branch or jump, when the processor knows where
+	 * execution continues after the delay slot. That address begins a
+	 * basic block.
+	 *
+	 * @param	from	the address of the branch or jump.
+	 * @param	to	the address of the next basic block.
+	 * @param	call	<tt>true</tt> if this was a taken branch or jump
+	 *			that links, that is, a procedure call.
+	 */
+	public void branch(int from, int to, boolean call);
+    }
+
+    /**
+     * Set the monitor that profiles user programs. Costs one test per
+     * instruction when no monitor is set.
+     *
+     * @param	monitor		the monitor, or <tt>null</tt> to stop
+     *				profiling.
+     * @param	sampleTicks	how many user ticks apart to call
+     *				<tt>monitor.sample()</tt>, or 0 to not sample.
+     * @param	branches	<tt>true</tt> to call <tt>monitor.branch()</tt>
+     *				after every branch and jump.
+     */
+    public void setMonitor(Monitor monitor, int sampleTicks, boolean branches) {
+	Lib.assertTrue(sampleTicks >= 0);
+
+	this.monitor = monitor;
+	this.sampleTicks = sampleTicks;
+	this.untilSample = sampleTicks;
+	this.monitorBranches = branches;
+    }
+
     /**
      * Get the exception handler, set by the last call to
      * <tt>setExceptionHandler()</tt>.
@@ -94,6 +170,11 @@ public final class Processor {
 	Instruction inst = new Instruction();
 	
 	while (true) {
+	    if (monitor != null && sampleTicks > 0 && --untilSample == 0) {
+		untilSample = sampleTicks;
+		monitor.sample(registers[regPC]);
+	    }
+
 	    try {
 		inst.run();
 	    }
@@ -175,6 +256,21 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	this.radixTable = null;
+    }
+
+    /**
+     * Set a two-level page table. All further address translations will walk
+     * the specified table, and any page it has no valid entry for will cause
+     * a page fault.
+     *
+     * @param	pageTable	the page table to use.
+     */
+    public void setPageTable(PageTable pageTable) {
+	Lib.assertTrue(!usingTLB);
+
+	this.translations = null;
+	this.radixTable = pageTable;
     }
 
     /**
@@ -206,7 +302,8 @@ public final class Processor {
      *
      * <p>
      * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * does not affect anything. An entry may map a superpage of several
+     * pages; see <tt>TranslationEntry.size</tt>.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,6 +311,8 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(entry.size > 0 && (entry.size & (entry.size-1)) == 0 &&
+		       (!entry.valid || entry.vpn % entry.size == 0));
 
 	translations[number] = new TranslationEntry(entry);
     }
@@ -230,14 +329,119 @@ public final class Processor {
 
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. Only available when physical
+     * memory is kept on the Java heap; otherwise use the bulk copy methods.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "physical memory is not on the Java heap");
+
 	return mainMemory;
     }
 
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the physical address to copy from.
+     * @param	data	the array to copy to.
+     * @param	offset	the offset in <i>data</i> to copy to.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	}
+	else {
+	    ByteBuffer view = memory.duplicate();
+	    view.position(paddr);
+	    view.get(data, offset, length);
+	}
+    }
+
+    /**
+     * Copy bytes from an array into physical memory.
+     *
+     * @param	paddr	the physical address to copy to.
+     * @param	data	the array to copy from.
+     * @param	offset	the offset in <i>data</i> to copy from.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	if (mainMemory != null) {
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	}
+	else {
+	    ByteBuffer view = memory.duplicate();
+	    view.position(paddr);
+	    view.put(data, offset, length);
+	}
+    }
+
+    /**
+     * Copy bytes from one part of physical memory to another.
+     *
+     * @param	from	the physical address to copy from.
+     * @param	to	the physical address to copy to.
+     * @param	length	the number of bytes to copy.
+     */
+    public void copyMemory(int from, int to, int length) {
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, from, mainMemory, to, length);
+	}
+	else {
+	    ByteBuffer src = memory.duplicate();
+	    src.position(from).limit(from+length);
+	    ByteBuffer dst = memory.duplicate();
+	    dst.position(to);
+	    dst.put(src);
+	}
+    }
+
+    /**
+     * Set a range of physical memory to a single value.
+     *
+     * @param	paddr	the first physical address to set.
+     * @param	length	the number of bytes to set.
+     * @param	value	the value to store in each byte.
+     */
+    public void fillMemory(int paddr, int length, byte value) {
+	if (mainMemory != null) {
+	    Arrays.fill(mainMemory, paddr, paddr+length, value);
+	}
+	else {
+	    if (fillPage[0] != value)
+		Arrays.fill(fillPage, value);
+
+	    ByteBuffer view = memory.duplicate();
+	    view.position(paddr);
+	    for (int done=0; done<length; done+=pageSize)
+		view.put(fillPage, 0, Math.min(pageSize, length-done));
+	}
+    }
+
+    private ByteBuffer mapMemoryFile(final String name) {
+	final ByteBuffer[] mapped = new ByteBuffer[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			RandomAccessFile file = new RandomAccessFile(name, "rw");
+			mapped[0] = file.getChannel().map(
+			    FileChannel.MapMode.READ_WRITE, 0,
+			    (long) pageSize * numPhysPages);
+			file.close();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	Lib.assertTrue(mapped[0] != null, "unable to map " + name);
+	return mapped[0];
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -301,7 +505,7 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw fault(exceptionAddressError, vaddr, writing);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -312,20 +516,22 @@ public final class Processor {
 
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
-	    if (translations == null || vpn >= translations.length ||
-		translations[vpn] == null ||
-		!translations[vpn].valid) {
+	    if (radixTable != null)
+		entry = radixTable.get(vpn);
+	    else if (translations != null && vpn < translations.length)
+		entry = translations[vpn];
+
+	    if (entry == null || !entry.valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw fault(exceptionPageFault, vaddr, writing);
 	    }
-
-	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through all TLB entries for one covering vpn
 	else {
 	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+		if (translations[i].valid &&
+		    translations[i].vpn == (vpn & ~(translations[i].size-1))) {
 		    entry = translations[i];
 		    break;
 		}
@@ -333,21 +539,23 @@ public final class Processor {
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw fault(exceptionTLBMiss, vaddr, writing);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw fault(exceptionReadOnly, vaddr, writing);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
+	if (usingTLB)
+	    ppn += vpn - entry.vpn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw fault(exceptionBusError, vaddr, writing);
 	}
 
 	// set used and dirty bits as appropriate
@@ -362,6 +570,23 @@ public final class Processor {
 	return paddr;
     }
 
+    /**
+     * Create the exception for a failed translation, and record it for the
+     * Java Flight Recorder if a recording wants it.
+     */
+    private MipsException fault(int cause, int vaddr, boolean writing) {
+	TranslationFaultEvent event = new TranslationFaultEvent();
+	if (event.shouldCommit()) {
+	    event.exception = exceptionNames[cause];
+	    event.vaddr = vaddr;
+	    event.writing = writing;
+	    event.tick = privilege.stats.totalTicks;
+	    Machine.commitEvent(event);
+	}
+
+	return new MipsException(cause, vaddr);
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -378,8 +603,19 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int paddr = translate(vaddr, size, false);
+	int value;
+	switch (size) {
+	case 1:
+	    value = memory.get(paddr);
+	    break;
+	case 2:
+	    value = memory.getShort(paddr);
+	    break;
+	default:
+	    value = memory.getInt(paddr);
+	    break;
+	}
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -406,8 +642,18 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+	switch (size) {
+	case 1:
+	    memory.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    memory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memory.putInt(paddr, value);
+	    break;
+	}
     }
 
     /**
@@ -546,6 +792,8 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /** The two-level page table, if one was set instead of an array. */
+    private PageTable radixTable = null;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -553,12 +801,21 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /** Main memory for user programs, in little-endian order. */
+    private ByteBuffer memory;
+    /** The array behind <tt>memory</tt>, if it is on the Java heap. */
     private byte[] mainMemory;
+    /** A page of the last value <tt>fillMemory()</tt> stored off the heap. */
+    private byte[] fillPage = new byte[pageSize];
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /** Profiles user programs, if set. */
+    private Monitor monitor = null;
+    private int sampleTicks, untilSample;
+    private boolean monitorBranches;
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
@@ -599,8 +856,22 @@ public final class Processor {
 	    // autograder might not want kernel to know about this exception
 	    if (!Machine.autoGrader().exceptionHandler(privilege))
 		return;
-	    
+
+	    if (cause != exceptionSyscall) {
+		exceptionHandler.run();
+		return;
+	    }
+
+	    // a system call's latency includes any time the kernel blocks
+	    int syscall = readRegister(regV0);
+	    long start = privilege.stats.totalTicks;
+	    privilege.stats.countSyscall(syscall);
+
 	    exceptionHandler.run();
+
+	    privilege.stats.recordSyscallLatency(syscall,
+						 privilege.stats.totalTicks -
+						 start);
 	}
 
 	private boolean hasBadVAddr = false;
@@ -613,6 +884,7 @@ public final class Processor {
 	    fetch();
 	    decode();
 	    execute();
+	    privilege.stats.instructionCounts[Mips.classes[operation]]++;
 	    writeBack();
 	}	
 
@@ -939,6 +1211,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
+		privilege.stats.instructionCounts[Stats.InstructionSyscall]++;
 		throw new MipsException(exceptionSyscall);
 
 	    case Mips.LOAD:
@@ -1044,6 +1317,10 @@ public final class Processor {
 		nextPC = jtarget;
 	    }
 
+	    if (monitor != null && monitorBranches && test(Mips.BRANCH))
+		monitor.branch(registers[regPC], nextPC,
+			       branch && test(Mips.LINK));
+
 	    advancePC(nextPC);
 
 	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
@@ -1120,6 +1397,22 @@ public final class Processor {
 	    SWR		= 40,
 	    MAX		= 40;
 
+	/** The <tt>Stats</tt> instruction class of each operation type. */
+	static final int[] classes = new int[MAX+1];
+	static {
+	    Arrays.fill(classes, Stats.InstructionOther);
+	    for (int operation : new int[] { ADD, SUB, MULT, DIV, SLL, SRA, SRL,
+					     SLT, AND, OR, NOR, XOR, LUI,
+					     MFLO, MFHI, MTLO, MTHI })
+		classes[operation] = Stats.InstructionALU;
+	    for (int operation : new int[] { LOAD, LWL, LWR, STORE, SWL, SWR })
+		classes[operation] = Stats.InstructionLoadStore;
+	    for (int operation : new int[] { JUMP, BEQ, BNE, BLEZ, BGTZ, BLTZ,
+					     BGEZ })
+		classes[operation] = Stats.InstructionBranch;
+	    classes[SYSCALL] = Stats.InstructionSyscall;
+	}
+
 	static final int
 	    IFMT = 1,
 	    JFMT = 2,
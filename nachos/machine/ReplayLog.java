@@ -0,0 +1,331 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A log of the nondeterministic inputs to the simulation, so that a run can
+ * be reproduced exactly. Everything else the machine does follows from the
+ * program and the simulated clock; only the random number generator, console
+ * input and network packet arrivals depend on the world outside.
+ *
+ * <p>
+ * When recording, each such event is appended to the log, tagged with the
+ * simulated time at which it happened. When replaying, the same events are
+ * fed back from the log at the same times, and live console input and network
+ * traffic are ignored. If the replayed run asks for a random number at a
+ * different time, or in a different order, it has diverged from the recorded
+ * one and Nachos stops. Once the log runs out, the run continues with live
+ * inputs.
+ *
+ * <p>
+ * The log is a stream of small binary records: a type byte, the ticks since
+ * the previous event as a variable-length number, and the event's value. It
+ * is written through a buffer and flushed when Nachos exits.
+ */
+public final class ReplayLog {
+    /**
+     * Open a log for recording or replaying.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the name of the log file, in the host file
+     *				system.
+     * @param	replaying	<tt>true</tt> to feed the events in an existing
+     *				log back, or <tt>false</tt> to record a new one.
+     */
+    public ReplayLog(Privilege privilege, final String fileName,
+		     boolean replaying) {
+	this.privilege = privilege;
+	this.replaying = replaying;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { open(fileName); }
+	    });
+	Lib.assertTrue(in != null || out != null, "unable to open " + fileName);
+
+	if (replaying) {
+	    readNext();
+	}
+	else {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { close(); }
+		});
+	}
+    }
+
+    /**
+     * Test whether events are being fed back from the log.
+     *
+     * @return	<tt>true</tt> if replaying, or <tt>false</tt> if recording.
+     */
+    public boolean isReplaying() {
+	return replaying;
+    }
+
+    /**
+     * Record or replay a number drawn from <tt>Lib.random(int)</tt>.
+     *
+     * @param	value	the number drawn from the generator.
+     * @return	the number to use.
+     */
+    int random(int value) {
+	if (!replaying) {
+	    write(eventRandomInt);
+	    writeInt(value);
+	    return value;
+	}
+
+	if (!expect(eventRandomInt))
+	    return value;
+	return (int) lastValue;
+    }
+
+    /**
+     * Record or replay a number drawn from <tt>Lib.random()</tt>.
+     *
+     * @param	value	the number drawn from the generator.
+     * @return	the number to use.
+     */
+    double random(double value) {
+	if (!replaying) {
+	    write(eventRandomDouble);
+	    writeLong(Double.doubleToLongBits(value));
+	    return value;
+	}
+
+	if (!expect(eventRandomDouble))
+	    return value;
+	return Double.longBitsToDouble(lastValue);
+    }
+
+    /**
+     * Record or replay a poll of the console for input.
+     *
+     * @param	value	the byte read from the console, or -1 if there was
+     *			none. Ignored when replaying.
+     * @return	the byte to use, or -1 if no byte arrived.
+     */
+    int consoleInput(int value) {
+	if (!replaying) {
+	    if (value != -1) {
+		write(eventConsole);
+		writeInt(value);
+	    }
+	    return value;
+	}
+
+	if (!due(eventConsole))
+	    return -1;
+	return (int) lastValue;
+    }
+
+    /**
+     * Record or replay a poll of the network for an arriving packet.
+     *
+     * @param	packetBytes	the contents of the packet that arrived, or
+     *				<tt>null</tt> if none did. Ignored when
+     *				replaying.
+     * @return	the contents of the packet to use, or <tt>null</tt> if no
+     *		packet arrived.
+     */
+    byte[] packetArrival(byte[] packetBytes) {
+	if (!replaying) {
+	    if (packetBytes != null) {
+		write(eventPacket);
+		writeInt(packetBytes.length);
+		try {
+		    out.write(packetBytes);
+		}
+		catch (IOException e) {
+		    failed(e);
+		}
+	    }
+	    return packetBytes;
+	}
+
+	if (!due(eventPacket))
+	    return null;
+	return lastBytes;
+    }
+
+    /**
+     * Check that the next event in the log is of the expected type and
+     * happens now, and move past it.
+     *
+     * @return	<tt>true</tt> if the event was replayed, or <tt>false</tt> if
+     *		the log is finished.
+     */
+    private boolean expect(int type) {
+	if (nextType == -1)
+	    return false;
+
+	Lib.assertTrue(nextType == type && nextTime == now(),
+		       "replay diverged at time " + now());
+	consume();
+	return true;
+    }
+
+    /**
+     * Test whether the next event in the log is an input of the specified
+     * type due now, and if so move past it.
+     */
+    private boolean due(int type) {
+	if (nextType != type || nextTime != now())
+	    return false;
+
+	consume();
+	return true;
+    }
+
+    private void consume() {
+	lastValue = nextValue;
+	lastBytes = nextBytes;
+	readNext();
+    }
+
+    private long now() {
+	return privilege.stats.totalTicks;
+    }
+
+    private void open(String fileName) {
+	try {
+	    if (replaying)
+		in = new DataInputStream(new BufferedInputStream(
+		    new FileInputStream(fileName), bufferSize));
+	    else
+		out = new DataOutputStream(new BufferedOutputStream(
+		    new FileOutputStream(fileName), bufferSize));
+	}
+	catch (IOException e) {
+	}
+    }
+
+    private void write(int type) {
+	long time = now();
+	try {
+	    out.writeByte(type);
+	    writeVarLong(time - lastTime);
+	}
+	catch (IOException e) {
+	    failed(e);
+	}
+	lastTime = time;
+    }
+
+    private void writeInt(int value) {
+	try {
+	    out.writeInt(value);
+	}
+	catch (IOException e) {
+	    failed(e);
+	}
+    }
+
+    private void writeLong(long value) {
+	try {
+	    out.writeLong(value);
+	}
+	catch (IOException e) {
+	    failed(e);
+	}
+    }
+
+    private void writeVarLong(long value) throws IOException {
+	while ((value & ~0x7FL) != 0) {
+	    out.writeByte((int) (value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	out.writeByte((int) value);
+    }
+
+    private long readVarLong() throws IOException {
+	long value = 0;
+	for (int shift = 0; ; shift += 7) {
+	    int b = in.readUnsignedByte();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+    }
+
+    /**
+     * Read the next event into <tt>nextType</tt>, <tt>nextTime</tt> and
+     * <tt>nextValue</tt> (or <tt>nextBytes</tt>). At the end of the log,
+     * <tt>nextType</tt> is set to -1.
+     */
+    private void readNext() {
+	try {
+	    nextType = in.readUnsignedByte();
+	    nextTime += readVarLong();
+
+	    switch (nextType) {
+	    case eventRandomInt:
+	    case eventConsole:
+		nextValue = in.readInt();
+		break;
+	    case eventRandomDouble:
+		nextValue = in.readLong();
+		break;
+	    case eventPacket:
+		nextBytes = new byte[in.readInt()];
+		in.readFully(nextBytes);
+		break;
+	    default:
+		Lib.assertNotReached("bad event in replay log");
+	    }
+	}
+	catch (EOFException e) {
+	    Lib.debug(dbgReplay, "Replay log finished at time " + now());
+	    nextType = -1;
+	    close();
+	}
+	catch (IOException e) {
+	    failed(e);
+	}
+    }
+
+    private void failed(IOException e) {
+	Lib.assertNotReached("replay log I/O failed: " + e);
+    }
+
+    private void close() {
+	try {
+	    if (out != null)
+		out.close();
+	    if (in != null)
+		in.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
+    private Privilege privilege;
+    private boolean replaying;
+
+    private DataOutputStream out = null;
+    private long lastTime = 0;
+
+    private DataInputStream in = null;
+    private int nextType = -1;
+    private long nextTime = 0;
+    private long nextValue, lastValue;
+    private byte[] nextBytes, lastBytes;
+
+    private static final int bufferSize = 64*1024;
+
+    private static final int eventRandomInt = 1;
+    private static final int eventRandomDouble = 2;
+    private static final int eventConsole = 3;
+    private static final int eventPacket = 4;
+
+    private static final char dbgReplay = 'r';
+}
@@ -89,7 +89,13 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
+	// when replaying, keystrokes come from the log instead
+	ReplayLog log = Machine.replayLog();
+	int c = (log != null && log.isReplaying()) ? -1 : in();
+	if (log != null)
+	    c = log.consoleInput(c);
+
+	incomingKey = translateCharacter(c);
 	if (incomingKey == -1) {
 	    scheduleReceiveInterrupt();
 	}
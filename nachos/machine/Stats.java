@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -15,7 +19,9 @@ public final class Stats {
     }
 
     /**
-     * Print out the statistics in this object.
+     * Print out the statistics in this object. Groups of counters kept only
+     * by some kernels, such as those of the swap, are printed only if one of
+     * them is nonzero.
      */
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
@@ -26,11 +32,256 @@ public final class Stats {
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
-			   + ", TLB misses " + numTLBMisses);
+			   + ", TLB misses " + numTLBMisses
+			   + (numSuperpages == 0 ? "" :
+			      ", superpages " + numSuperpages)
+			   + (replacementPolicy == null ? "" :
+			      ", replacement " + replacementPolicy));
+	if (numPageEvictions + numPageIns + numPageOuts != 0)
+	    System.out.println("Swap: evictions " + numPageEvictions
+			       + ", page ins " + numPageIns
+			       + ", page outs " + numPageOuts);
+	if (numCompressedStores + numCompressedLoads
+	    + numCompressionRejects != 0)
+	    System.out.println("Compressed swap: stored " + numCompressedStores
+			       + ", loaded " + numCompressedLoads
+			       + ", rejected " + numCompressionRejects);
+	if (numPageoutWakeups + numPagesReclaimed + numPagesCleaned != 0)
+	    System.out.println("Pageout daemon: wakeups " + numPageoutWakeups
+			       + ", reclaimed " + numPagesReclaimed
+			       + ", cleaned " + numPagesCleaned);
+	if (numPagesZeroed + numZeroedPageHits != 0)
+	    System.out.println("Page zeroing: background " + numPagesZeroed
+			       + ", pre-zeroed allocations "
+			       + numZeroedPageHits);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	long instructions = 0;
+	String mix = "Instructions:";
+	for (int i=0; i<numInstructionClasses; i++) {
+	    instructions += instructionCounts[i];
+	    mix += (i == 0 ? " " : ", ") + instructionClassNames[i] + " "
+		+ instructionCounts[i];
+	}
+	if (instructions != 0)
+	    System.out.println(mix);
+
+	for (int syscall=0; syscall<maxSyscalls; syscall++) {
+	    if (syscallCounts[syscall] == 0)
+		continue;
+
+	    String latency = "";
+	    for (int bucket=0; bucket<latencyBuckets; bucket++) {
+		if (syscallLatencies[syscall][bucket] != 0)
+		    latency += " " + bucketName(bucket) + ":"
+			+ syscallLatencies[syscall][bucket];
+	    }
+
+	    // calls such as exit() never return, so have no latency
+	    System.out.println("Syscall " + syscall + ": calls "
+			       + syscallCounts[syscall] + ", ticks "
+			       + syscallTicks[syscall]
+			       + (latency.length() == 0 ? "" : ", latency" + latency));
+	}
+    }
+
+    /**
+     * Count a system call. Called by the processor before the kernel
+     * handles it, so that calls which never return are counted too.
+     *
+     * @param	syscall	the system call number.
+     */
+    void countSyscall(int syscall) {
+	if (syscall >= 0 && syscall < maxSyscalls)
+	    syscallCounts[syscall]++;
+    }
+
+    /**
+     * Record how long the kernel took to handle a system call, including
+     * any time spent waiting.
+     *
+     * @param	syscall	the system call number.
+     * @param	ticks	the simulated time from the call to its return.
+     */
+    void recordSyscallLatency(int syscall, long ticks) {
+	if (syscall < 0 || syscall >= maxSyscalls)
+	    return;
+
+	syscallTicks[syscall] += ticks;
+	syscallLatencies[syscall][latencyBucket(ticks)]++;
+    }
+
+    /**
+     * Add to the counter of an event the kernel handles in software, which
+     * the hardware can't see.
+     *
+     * @param	event	the kind of event, <tt>EventPageFault</tt> through
+     *			<tt>EventZeroedPageHit</tt>.
+     * @param	amount	the number of events.
+     */
+    void countKernelEvent(int event, int amount) {
+	switch (event) {
+	case EventPageFault:		numPageFaults += amount; break;
+	case EventSuperpage:		numSuperpages += amount; break;
+	case EventPageEviction:		numPageEvictions += amount; break;
+	case EventPageIn:		numPageIns += amount; break;
+	case EventPageOut:		numPageOuts += amount; break;
+	case EventCompressedStore:	numCompressedStores += amount; break;
+	case EventCompressedLoad:	numCompressedLoads += amount; break;
+	case EventCompressionReject:	numCompressionRejects += amount; break;
+	case EventPageoutWakeup:	numPageoutWakeups += amount; break;
+	case EventPageReclaimed:	numPagesReclaimed += amount; break;
+	case EventPageCleaned:		numPagesCleaned += amount; break;
+	case EventPageZeroed:		numPagesZeroed += amount; break;
+	case EventZeroedPageHit:	numZeroedPageHits += amount; break;
+	default:
+	    Lib.assertNotReached("unknown kernel event " + event);
+	}
+    }
+
+    /**
+     * Write the statistics as a JSON object: the page replacement policy,
+     * every counter by name, the instruction mix, and the count, total ticks
+     * and latency histogram of each system call that was made.
+     *
+     * @param	out	the stream to write to.
+     */
+    public void printJSON(PrintStream out) {
+	out.println("{");
+	out.println("  \"replacementPolicy\": "
+		    + (replacementPolicy == null ? "null" :
+		       "\"" + replacementPolicy + "\"") + ",");
+	out.println("  \"counters\": {");
+	Field[] fields = counterFields();
+	for (int i=0; i<fields.length; i++) {
+	    out.println("    \"" + fields[i].getName() + "\": "
+			+ counterValue(fields[i])
+			+ (i < fields.length-1 ? "," : ""));
+	}
+	out.println("  },");
+
+	out.println("  \"instructions\": {");
+	for (int i=0; i<numInstructionClasses; i++) {
+	    out.println("    \"" + instructionClassNames[i] + "\": "
+			+ instructionCounts[i]
+			+ (i < numInstructionClasses-1 ? "," : ""));
+	}
+	out.println("  },");
+
+	out.print("  \"syscalls\": [");
+	boolean first = true;
+	for (int syscall=0; syscall<maxSyscalls; syscall++) {
+	    if (syscallCounts[syscall] == 0)
+		continue;
+
+	    out.print(first ? "\n" : ",\n");
+	    first = false;
+
+	    String latency = "";
+	    for (int bucket=0; bucket<latencyBuckets; bucket++) {
+		if (syscallLatencies[syscall][bucket] != 0)
+		    latency += (latency.length() == 0 ? "" : ", ") + "\""
+			+ bucketName(bucket) + "\": "
+			+ syscallLatencies[syscall][bucket];
+	    }
+
+	    out.print("    { \"syscall\": " + syscall
+		      + ", \"calls\": " + syscallCounts[syscall]
+		      + ", \"ticks\": " + syscallTicks[syscall]
+		      + ", \"latency\": {"
+		      + (latency.length() == 0 ? "" : " " + latency + " ") + "} }");
+	}
+	out.println(first ? "]" : "\n  ]");
+	out.println("}");
     }
 
+    /**
+     * Write the statistics as comma-separated values, one per line, with a
+     * header line: <tt>metric,key,value</tt>. The page replacement policy,
+     * if there is one, is on a line of metric <tt>policy</tt>.
+     *
+     * @param	out	the stream to write to.
+     */
+    public void printCSV(PrintStream out) {
+	out.println("metric,key,value");
+	if (replacementPolicy != null)
+	    out.println("policy,replacement," + replacementPolicy);
+	for (Field field : counterFields())
+	    out.println("counter," + field.getName() + ","
+			+ counterValue(field));
+
+	for (int i=0; i<numInstructionClasses; i++)
+	    out.println("instructions," + instructionClassNames[i] + ","
+			+ instructionCounts[i]);
+
+	for (int syscall=0; syscall<maxSyscalls; syscall++) {
+	    if (syscallCounts[syscall] == 0)
+		continue;
+
+	    out.println("syscall_calls," + syscall + ","
+			+ syscallCounts[syscall]);
+	    out.println("syscall_ticks," + syscall + ","
+			+ syscallTicks[syscall]);
+	    for (int bucket=0; bucket<latencyBuckets; bucket++) {
+		if (syscallLatencies[syscall][bucket] != 0)
+		    out.println("syscall_latency," + syscall + " "
+				+ bucketName(bucket) + ","
+				+ syscallLatencies[syscall][bucket]);
+	    }
+	}
+    }
+
+    /**
+     * Return the latency histogram bucket for a number of ticks. Bucket 0
+     * holds latencies of 0, and bucket <i>n</i> latencies from
+     * 2<sup><i>n</i>-1</sup> up to 2<sup><i>n</i></sup>-1.
+     */
+    private static int latencyBucket(long ticks) {
+	int bucket = 64 - Long.numberOfLeadingZeros(Math.max(ticks, 0));
+	return Math.min(bucket, latencyBuckets-1);
+    }
+
+    private static String bucketName(int bucket) {
+	if (bucket == 0)
+	    return "0";
+	if (bucket == latencyBuckets-1)
+	    return (1L << (bucket-1)) + "+";
+
+	return (1L << (bucket-1)) + "-" + ((1L << bucket) - 1);
+    }
+
+    /** The public <tt>int</tt> and <tt>long</tt> counters, in declaration
+     * order. */
+    private static Field[] counterFields() {
+	Field[] all = Stats.class.getFields();
+	int count = 0;
+	for (Field field : all) {
+	    if (!Modifier.isStatic(field.getModifiers()) &&
+		(field.getType() == int.class || field.getType() == long.class))
+		all[count++] = field;
+	}
+
+	Field[] fields = new Field[count];
+	System.arraycopy(all, 0, fields, 0, count);
+	return fields;
+    }
+
+    private long counterValue(Field field) {
+	try {
+	    return ((Number) field.get(this)).longValue();
+	}
+	catch (IllegalAccessException e) {
+	    return 0;
+	}
+    }
+
+    /**
+     * The name of the page replacement policy that chose the pages counted
+     * in <tt>numPageEvictions</tt>, or <tt>null</tt> if the kernel has none.
+     */
+    public String replacementPolicy = null;
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -57,11 +308,99 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of superpage translations loaded into the TLB. */
+    public int numSuperpages = 0;
+    /** The total number of pages evicted to make room for other pages. */
+    public int numPageEvictions = 0;
+    /** The total number of pages read back from the swap file. */
+    public int numPageIns = 0;
+    /** The total number of pages written to the swap file. */
+    public int numPageOuts = 0;
+    /** The total number of pages stored in the compressed swap pool. */
+    public int numCompressedStores = 0;
+    /** The total number of pages loaded from the compressed swap pool. */
+    public int numCompressedLoads = 0;
+    /** The total number of pages that were too big to store in the
+     * compressed swap pool. */
+    public int numCompressionRejects = 0;
+    /** The total number of times the page-out daemon has been woken. */
+    public int numPageoutWakeups = 0;
+    /** The total number of pages freed by the page-out daemon. */
+    public int numPagesReclaimed = 0;
+    /** The total number of dirty pages written out, but left resident, by
+     * the page-out daemon. */
+    public int numPagesCleaned = 0;
+    /** The total number of free pages zeroed by the page zeroing thread. */
+    public int numPagesZeroed = 0;
+    /** The total number of zero-filled pages allocated without having to be
+     * cleared first. */
+    public int numZeroedPageHits = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
 
+    /** The number of user instructions executed in each instruction class,
+     * indexed by <tt>InstructionALU</tt> through <tt>InstructionOther</tt>. */
+    public final long[] instructionCounts = new long[numInstructionClasses];
+    /** The number of times each system call was made, by number. */
+    public final long[] syscallCounts = new long[maxSyscalls];
+    /** The total simulated time spent in each system call, by number. */
+    public final long[] syscallTicks = new long[maxSyscalls];
+    /** A histogram of the latency of each system call, by number, with
+     * power-of-two buckets of ticks. */
+    public final long[][] syscallLatencies = new long[maxSyscalls][latencyBuckets];
+
+    /** Instructions that compute: arithmetic, logic, shifts and moves. */
+    public static final int InstructionALU = 0;
+    /** Instructions that read or write memory. */
+    public static final int InstructionLoadStore = 1;
+    /** Branches and jumps. */
+    public static final int InstructionBranch = 2;
+    /** System calls. */
+    public static final int InstructionSyscall = 3;
+    /** Anything else, such as unimplemented instructions. */
+    public static final int InstructionOther = 4;
+    /** The number of instruction classes. */
+    public static final int numInstructionClasses = 5;
+    /** The names of the instruction classes, as printed. */
+    public static final String[] instructionClassNames = {
+	"ALU", "load/store", "branch", "syscall", "other"
+    };
+
+    /** Page faults handled in software, with a TLB. */
+    public static final int EventPageFault = 0;
+    /** Superpage translations loaded into the TLB. */
+    public static final int EventSuperpage = 1;
+    /** Pages evicted to make room for other pages. */
+    public static final int EventPageEviction = 2;
+    /** Pages read back from the swap file. */
+    public static final int EventPageIn = 3;
+    /** Pages written to the swap file. */
+    public static final int EventPageOut = 4;
+    /** Pages stored in the compressed swap pool. */
+    public static final int EventCompressedStore = 5;
+    /** Pages loaded from the compressed swap pool. */
+    public static final int EventCompressedLoad = 6;
+    /** Pages turned away by the compressed swap pool. */
+    public static final int EventCompressionReject = 7;
+    /** Wakeups of the page-out daemon. */
+    public static final int EventPageoutWakeup = 8;
+    /** Pages freed by the page-out daemon. */
+    public static final int EventPageReclaimed = 9;
+    /** Dirty pages written back, but left resident, by the page-out
+     * daemon. */
+    public static final int EventPageCleaned = 10;
+    /** Free pages cleared by the page zeroing thread. */
+    public static final int EventPageZeroed = 11;
+    /** Allocations satisfied by pages that were already cleared. */
+    public static final int EventZeroedPageHit = 12;
+
+    /** The number of system call numbers that are tracked. */
+    public static final int maxSyscalls = 64;
+    /** The number of buckets in each latency histogram. */
+    public static final int latencyBuckets = 24;
+
     /**
      * The amount to advance simulated time after each user instructions is
      * executed.
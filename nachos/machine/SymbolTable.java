@@ -0,0 +1,239 @@
+package nachos.machine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The procedures named in the symbol table of a COFF executable. The MIPS
+ * toolchain writes an ECOFF symbolic header, pointed to by the file header,
+ * which locates per-file descriptors, local and external symbols, and their
+ * string tables. Only procedure symbols are kept, sorted by address, so that
+ * an address in the program can be mapped back to the procedure containing
+ * it.
+ *
+ * @see	nachos.machine.Coff#getSymbolTable
+ */
+public final class SymbolTable {
+    /**
+     * Read the procedure symbols of an executable.
+     *
+     * @param	file	the executable file.
+     * @return	the symbol table, or <tt>null</tt> if the executable has no
+     *		symbols or they can't be read.
+     */
+    public static SymbolTable read(OpenFile file) {
+	try {
+	    byte[] fileHeader = new byte[20];
+	    readFully(file, 0, fileHeader);
+	    int symbolicHeader = Lib.bytesToInt(fileHeader, 8);
+	    if (symbolicHeader == 0)
+		return null;
+
+	    byte[] hdr = new byte[symbolicHeaderLength];
+	    readFully(file, symbolicHeader, hdr);
+	    if (Lib.bytesToUnsignedShort(hdr, 0) != symbolicMagic)
+		return null;
+
+	    SymbolTable table = new SymbolTable();
+	    table.readLocals(file, hdr);
+	    table.readExternals(file, hdr);
+	    table.sort();
+	    return table.count == 0 ? null : table;
+	}
+	catch (IllegalArgumentException e) {
+	    Lib.debug(dbgSymbols, "\tbad symbol table");
+	    return null;
+	}
+    }
+
+    private SymbolTable() {
+    }
+
+    /**
+     * Return the number of procedures in the table.
+     *
+     * @return	the number of procedures.
+     */
+    public int getNumProcedures() {
+	return count;
+    }
+
+    /**
+     * Return the name of a procedure.
+     *
+     * @param	index	the procedure's index, from <tt>0</tt> to
+     *			<tt>getNumProcedures() - 1</tt>, in address order.
+     * @return	the procedure's name.
+     */
+    public String getName(int index) {
+	return names[index];
+    }
+
+    /**
+     * Return the address of the first instruction of a procedure.
+     *
+     * @param	index	the procedure's index.
+     * @return	the procedure's address.
+     */
+    public int getAddress(int index) {
+	return addresses[index];
+    }
+
+    /**
+     * Find the procedure containing an address: the one with the highest
+     * address not above it.
+     *
+     * @param	address	the address to look up.
+     * @return	the procedure's index, or -1 if <i>address</i> is below every
+     *		procedure.
+     */
+    public int findProcedure(int address) {
+	int low = 0, high = count-1, found = -1;
+	while (low <= high) {
+	    int mid = (low+high) >>> 1;
+	    if (Integer.compareUnsigned(addresses[mid], address) <= 0) {
+		found = mid;
+		low = mid+1;
+	    }
+	    else {
+		high = mid-1;
+	    }
+	}
+
+	return found;
+    }
+
+    /**
+     * Describe an address as a procedure name plus an offset.
+     *
+     * @param	address	the address to describe.
+     * @return	a string such as <tt>main+0x1c</tt>, or the address in
+     *		hexadecimal if it is below every procedure.
+     */
+    public String describe(int address) {
+	int index = findProcedure(address);
+	if (index == -1)
+	    return "0x" + Lib.toHexString(address);
+	if (address == addresses[index])
+	    return names[index];
+
+	return names[index] + "+0x" + Integer.toHexString(address -
+							  addresses[index]);
+    }
+
+    private void readLocals(OpenFile file, byte[] hdr) {
+	int numSymbols = Lib.bytesToInt(hdr, 32);
+	int symbolOffset = Lib.bytesToInt(hdr, 36);
+	int stringSize = Lib.bytesToInt(hdr, 56);
+	int stringOffset = Lib.bytesToInt(hdr, 60);
+	int numFiles = Lib.bytesToInt(hdr, 72);
+	int fileOffset = Lib.bytesToInt(hdr, 76);
+	if (numSymbols <= 0 || numFiles <= 0)
+	    return;
+
+	byte[] symbols = new byte[numSymbols*symbolLength];
+	byte[] strings = new byte[stringSize];
+	byte[] files = new byte[numFiles*fileDescriptorLength];
+	readFully(file, symbolOffset, symbols);
+	readFully(file, stringOffset, strings);
+	readFully(file, fileOffset, files);
+
+	for (int f=0; f<numFiles; f++) {
+	    int fd = f*fileDescriptorLength;
+	    int stringBase = Lib.bytesToInt(files, fd+8);
+	    int symbolBase = Lib.bytesToInt(files, fd+16);
+	    int fileSymbols = Lib.bytesToInt(files, fd+20);
+
+	    for (int i=0; i<fileSymbols; i++)
+		addSymbol(symbols, (symbolBase+i)*symbolLength, strings,
+			  stringBase);
+	}
+    }
+
+    private void readExternals(OpenFile file, byte[] hdr) {
+	int stringSize = Lib.bytesToInt(hdr, 64);
+	int stringOffset = Lib.bytesToInt(hdr, 68);
+	int numExternals = Lib.bytesToInt(hdr, 88);
+	int externalOffset = Lib.bytesToInt(hdr, 92);
+	if (numExternals <= 0)
+	    return;
+
+	byte[] externals = new byte[numExternals*externalLength];
+	byte[] strings = new byte[stringSize];
+	readFully(file, externalOffset, externals);
+	readFully(file, stringOffset, strings);
+
+	// each external is two shorts followed by an ordinary symbol
+	for (int i=0; i<numExternals; i++)
+	    addSymbol(externals, i*externalLength + 4, strings, 0);
+    }
+
+    private void addSymbol(byte[] symbols, int offset, byte[] strings,
+			   int stringBase) {
+	int name = Lib.bytesToInt(symbols, offset);
+	int value = Lib.bytesToInt(symbols, offset+4);
+	int type = Lib.bytesToInt(symbols, offset+8) & 0x3F;
+	if (type != stProc && type != stStaticProc)
+	    return;
+
+	int start = stringBase + name, end = start;
+	if (start < 0 || start >= strings.length)
+	    return;
+	while (end < strings.length && strings[end] != 0)
+	    end++;
+
+	// the same procedure can appear as both a local and an external
+	for (int i=0; i<count; i++) {
+	    if (addresses[i] == value)
+		return;
+	}
+
+	if (count == names.length) {
+	    names = Arrays.copyOf(names, count*2);
+	    addresses = Arrays.copyOf(addresses, count*2);
+	}
+	names[count] = new String(strings, start, end-start);
+	addresses[count] = value;
+	count++;
+    }
+
+    private void sort() {
+	Integer[] order = new Integer[count];
+	for (int i=0; i<count; i++)
+	    order[i] = i;
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return Integer.compareUnsigned(addresses[a], addresses[b]);
+		}
+	    });
+
+	String[] sortedNames = new String[count];
+	int[] sortedAddresses = new int[count];
+	for (int i=0; i<count; i++) {
+	    sortedNames[i] = names[order[i]];
+	    sortedAddresses[i] = addresses[order[i]];
+	}
+	names = sortedNames;
+	addresses = sortedAddresses;
+    }
+
+    private static void readFully(OpenFile file, int position, byte[] buf) {
+	if (position < 0 || file.read(position, buf, 0, buf.length) != buf.length)
+	    throw new IllegalArgumentException();
+    }
+
+    private String[] names = new String[16];
+    private int[] addresses = new int[16];
+    private int count = 0;
+
+    private static final int symbolicMagic = 0x7009;
+    private static final int symbolicHeaderLength = 96;
+    private static final int fileDescriptorLength = 72;
+    private static final int symbolLength = 12;
+    private static final int externalLength = 16;
+
+    /** Symbol types of procedures. */
+    private static final int stProc = 6, stStaticProc = 14;
+
+    private static final char dbgSymbols = 'c';
+}
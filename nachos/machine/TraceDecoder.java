@@ -0,0 +1,130 @@
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Turns a trace file written by <tt>Tracer</tt> into text, one event per
+ * line: the simulated time, the event type's name, and the event formatted
+ * with its type's format string. Run it outside of Nachos:
+ *
+ * <pre>
+ * java nachos.machine.TraceDecoder <i>tracefile</i> [<i>name-prefix</i>]
+ * </pre>
+ *
+ * If a prefix is given, only events whose type name starts with it are
+ * printed.
+ *
+ * @see	nachos.machine.Tracer
+ */
+public final class TraceDecoder {
+    private TraceDecoder() {
+    }
+
+    /**
+     * Decode a trace file to standard output.
+     *
+     * @param	args	the name of the trace file, and optionally a prefix of
+     *			the event type names to print.
+     */
+    public static void main(String[] args) {
+	if (args.length < 1 || args.length > 2) {
+	    System.err.println("usage: java nachos.machine.TraceDecoder "
+			       + "<tracefile> [<name-prefix>]");
+	    System.exit(1);
+	}
+
+	String prefix = (args.length == 2) ? args[1] : "";
+
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(
+		new FileInputStream(args[0])));
+	    try {
+		decode(in, prefix);
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	catch (IOException e) {
+	    System.err.println(args[0] + ": " + e.getMessage());
+	    System.exit(1);
+	}
+    }
+
+    private static void decode(DataInputStream in, String prefix)
+	throws IOException {
+	if (in.readInt() != Tracer.magic || in.readInt() != Tracer.version)
+	    throw new IOException("not a trace file");
+
+	ArrayList<String> names = new ArrayList<String>();
+	ArrayList<String> formats = new ArrayList<String>();
+	ArrayList<String> strings = new ArrayList<String>();
+	long count = 0;
+
+	while (true) {
+	    int tag;
+	    try {
+		tag = in.readUnsignedByte();
+	    }
+	    catch (EOFException e) {
+		System.out.println("(trace ends without a trailer after "
+				   + count + " events)");
+		return;
+	    }
+
+	    switch (tag) {
+	    case Tracer.tagEvent:
+		int id = in.readInt();
+		in.readChar();
+		set(names, id, in.readUTF());
+		formats.add(in.readUTF());
+		break;
+
+	    case Tracer.tagString:
+		set(strings, in.readInt(), in.readUTF());
+		break;
+
+	    case Tracer.tagRecord:
+		long tick = in.readLong();
+		int event = in.readInt();
+		long arg0 = in.readLong();
+		long arg1 = in.readLong();
+		count++;
+
+		if (event < 0 || event >= names.size())
+		    throw new IOException("undefined event " + event);
+		if (!names.get(event).startsWith(prefix))
+		    break;
+
+		System.out.println(String.format("%12d  %-18s %s", tick,
+						 names.get(event),
+						 Tracer.format(formats.get(event),
+							       strings, arg0,
+							       arg1).trim()));
+		break;
+
+	    case Tracer.tagDropped:
+		long dropped = in.readLong();
+		System.out.println("(" + count + " events, " + dropped
+				   + " dropped)");
+		return;
+
+	    default:
+		throw new IOException("bad record tag " + tag);
+	    }
+	}
+    }
+
+    /** Definitions are written in ID order, so each one is appended. */
+    private static void set(ArrayList<String> list, int id, String value)
+	throws IOException {
+	if (id != list.size())
+	    throw new IOException("definition " + id + " out of order");
+	list.add(value);
+    }
+}
@@ -0,0 +1,333 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A low-overhead tracer for events that happen often, such as scheduling an
+ * interrupt or switching threads. Unlike <tt>Lib.debug()</tt>, tracing an
+ * event builds no strings: it stores a fixed-size binary record, holding the
+ * simulated time, the event type and two numeric arguments, in a ring buffer
+ * allocated up front. A separate host thread drains the buffer to the trace
+ * file in the background, so recording stays cheap enough to leave on. If the
+ * buffer fills faster than it can be drained, new records are dropped and
+ * counted rather than making Nachos wait.
+ *
+ * <p>
+ * Event types are defined once, with a debug flag and a format string. When
+ * the flag is enabled with <tt>-d</tt>, each event is also formatted and
+ * printed as <tt>Lib.debug()</tt> would print it. Arguments formatted with
+ * <tt>%s</tt> are the IDs of strings passed to <tt>intern()</tt>; any other
+ * conversion is applied to the argument as a <tt>long</tt>.
+ *
+ * <p>
+ * Tracing is enabled by the <tt>nachos.conf</tt> key
+ * <tt>Machine.traceFile</tt>, and the ring holds
+ * <tt>Machine.traceBufferSize</tt> records. Trace files are turned back into
+ * text by <tt>TraceDecoder</tt>.
+ *
+ * @see	nachos.machine.TraceDecoder
+ */
+public final class Tracer {
+    /**
+     * Start tracing to a file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the name of the trace file, in the host file
+     *				system.
+     * @param	capacity	the number of records the ring buffer holds,
+     *				rounded up to a power of two.
+     */
+    Tracer(Privilege privilege, final String fileName, int capacity) {
+	this.privilege = privilege;
+
+	int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+	mask = size-1;
+	ticks = new long[size];
+	events = new int[size];
+	args = new long[size*2];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { start(fileName); }
+	    });
+	Lib.assertTrue(out != null, "unable to open " + fileName);
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { close(); }
+	    });
+    }
+
+    /**
+     * Define a type of event.
+     *
+     * @param	flag	the debug flag that also prints events of this type.
+     * @param	name	a short name for the event type, such as
+     *			<tt>thread.ready</tt>.
+     * @param	format	a <tt>String.format()</tt> pattern for the event's
+     *			arguments.
+     * @return	the event type's ID, to pass to <tt>trace()</tt>.
+     */
+    public static int defineEvent(char flag, String name, String format) {
+	synchronized (definitionLock) {
+	    eventFlags.add(flag);
+	    eventNames.add(name);
+	    eventFormats.add(format);
+	    return eventNames.size()-1;
+	}
+    }
+
+    /**
+     * Return the ID of a string, for use as an event argument formatted with
+     * <tt>%s</tt>. The same string always has the same ID.
+     *
+     * @param	s	the string.
+     * @return	the string's ID.
+     */
+    public static int intern(String s) {
+	synchronized (definitionLock) {
+	    Integer id = stringIDs.get(s);
+	    if (id == null) {
+		id = strings.size();
+		strings.add(s);
+		stringIDs.put(s, id);
+	    }
+	    return id;
+	}
+    }
+
+    /**
+     * Test whether events are being traced, or printed, at all. Callers only
+     * need this to skip work done just to compute an event's arguments.
+     *
+     * @param	flag	the debug flag of the event type.
+     * @return	<tt>true</tt> if events of the type would be recorded.
+     */
+    public static boolean enabled(char flag) {
+	return tracer != null || Lib.test(flag);
+    }
+
+    /**
+     * Trace an event with no arguments.
+     *
+     * @param	event	the ID returned by <tt>defineEvent()</tt>.
+     */
+    public static void trace(int event) {
+	trace(event, 0, 0);
+    }
+
+    /**
+     * Trace an event with one argument.
+     *
+     * @param	event	the ID returned by <tt>defineEvent()</tt>.
+     * @param	arg0	the argument.
+     */
+    public static void trace(int event, long arg0) {
+	trace(event, arg0, 0);
+    }
+
+    /**
+     * Trace an event with two arguments.
+     *
+     * @param	event	the ID returned by <tt>defineEvent()</tt>.
+     * @param	arg0	the first argument.
+     * @param	arg1	the second argument.
+     */
+    public static void trace(int event, long arg0, long arg1) {
+	if (tracer != null)
+	    tracer.append(event, arg0, arg1);
+
+	if (Lib.test(eventFlags.get(event)))
+	    System.out.println(format(eventFormats.get(event), strings,
+				      arg0, arg1));
+    }
+
+    /**
+     * Format an event's arguments.
+     *
+     * @param	format	the event type's format string.
+     * @param	strings	the strings that <tt>%s</tt> arguments refer to.
+     * @param	arg0	the first argument.
+     * @param	arg1	the second argument.
+     * @return	the formatted event.
+     */
+    static String format(String format, ArrayList<String> strings,
+			 long arg0, long arg1) {
+	long[] values = { arg0, arg1 };
+	Object[] formatArgs = new Object[values.length];
+	int n = 0;
+
+	for (int i=0; i+1<format.length() && n<values.length; i++) {
+	    if (format.charAt(i) != '%')
+		continue;
+
+	    char conversion = format.charAt(++i);
+	    if (conversion == '%' || conversion == 'n')
+		continue;
+
+	    if (conversion == 's') {
+		int id = (int) values[n];
+		formatArgs[n] = (id >= 0 && id < strings.size()) ?
+		    strings.get(id) : ("#" + id);
+	    }
+	    else {
+		formatArgs[n] = values[n];
+	    }
+	    n++;
+	}
+
+	return String.format(format, formatArgs);
+    }
+
+    private void append(int event, long arg0, long arg1) {
+	long h = head;
+	if (h - tail > mask) {
+	    dropped++;
+	    return;
+	}
+
+	int i = (int) h & mask;
+	ticks[i] = privilege.stats.totalTicks;
+	events[i] = event;
+	args[i*2] = arg0;
+	args[i*2+1] = arg1;
+	head = h+1;
+
+	// wake the flusher early once the ring is half full
+	if (h - tail == (mask+1)/2)
+	    LockSupport.unpark(flusher);
+    }
+
+    private void start(String fileName) {
+	try {
+	    out = new DataOutputStream(new BufferedOutputStream(
+		new FileOutputStream(fileName), bufferSize));
+	    out.writeInt(magic);
+	    out.writeInt(version);
+	}
+	catch (IOException e) {
+	    out = null;
+	    return;
+	}
+
+	flusher = new Thread(new Runnable() {
+		public void run() { flushLoop(); }
+	    }, "trace flusher");
+	flusher.setDaemon(true);
+	flusher.start();
+    }
+
+    private void flushLoop() {
+	while (!closing) {
+	    LockSupport.parkNanos(flushInterval);
+	    drain();
+	}
+    }
+
+    /**
+     * Write any new definitions, then every record in the ring. Definitions
+     * are written first, since a record can only refer to an event or string
+     * defined before it was appended.
+     */
+    private synchronized void drain() {
+	long h = head;
+
+	try {
+	    synchronized (definitionLock) {
+		for (; writtenEvents < eventNames.size(); writtenEvents++) {
+		    out.writeByte(tagEvent);
+		    out.writeInt(writtenEvents);
+		    out.writeChar(eventFlags.get(writtenEvents));
+		    out.writeUTF(eventNames.get(writtenEvents));
+		    out.writeUTF(eventFormats.get(writtenEvents));
+		}
+		for (; writtenStrings < strings.size(); writtenStrings++) {
+		    out.writeByte(tagString);
+		    out.writeInt(writtenStrings);
+		    out.writeUTF(strings.get(writtenStrings));
+		}
+	    }
+
+	    for (long t = tail; t < h; t++) {
+		int i = (int) t & mask;
+		out.writeByte(tagRecord);
+		out.writeLong(ticks[i]);
+		out.writeInt(events[i]);
+		out.writeLong(args[i*2]);
+		out.writeLong(args[i*2+1]);
+	    }
+	}
+	catch (IOException e) {
+	    closing = true;
+	}
+
+	tail = h;
+    }
+
+    private void close() {
+	closing = true;
+	if (flusher != null) {
+	    LockSupport.unpark(flusher);
+	    try {
+		flusher.join();
+	    }
+	    catch (InterruptedException e) {
+	    }
+	}
+
+	drain();
+	try {
+	    out.writeByte(tagDropped);
+	    out.writeLong(dropped);
+	    out.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
+    private Privilege privilege;
+    private DataOutputStream out = null;
+    private Thread flusher = null;
+    private volatile boolean closing = false;
+
+    /** The ring buffer, one record per index. */
+    private final int mask;
+    private final long[] ticks;
+    private final int[] events;
+    private final long[] args;
+    /** The number of records ever appended, and ever written. */
+    private volatile long head = 0, tail = 0;
+    private long dropped = 0;
+
+    private int writtenEvents = 0, writtenStrings = 0;
+
+    /** The tracer writing the trace file, set by <tt>Machine</tt>. */
+    static Tracer tracer = null;
+
+    private static final Object definitionLock = new Object();
+    private static ArrayList<Character> eventFlags = new ArrayList<Character>();
+    private static ArrayList<String> eventNames = new ArrayList<String>();
+    private static ArrayList<String> eventFormats = new ArrayList<String>();
+    private static ArrayList<String> strings = new ArrayList<String>();
+    private static HashMap<String, Integer> stringIDs =
+	new HashMap<String, Integer>();
+
+    static final int magic = 0x4e545243;
+    static final int version = 1;
+
+    static final int tagEvent = 1;
+    static final int tagString = 2;
+    static final int tagRecord = 3;
+    static final int tagDropped = 4;
+
+    private static final int bufferSize = 64*1024;
+    /** Nanoseconds between drains of the ring buffer. */
+    private static final long flushInterval = 10*1000*1000;
+}
@@ -48,6 +48,7 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	size = entry.size;
     }
 
     /** The virtual page number. */
@@ -78,4 +79,13 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The number of pages this entry maps, a power of two. An entry of more
+     * than one page (a superpage) maps the virtual pages <tt>vpn</tt> to
+     * <tt>vpn+size-1</tt> onto the physical pages <tt>ppn</tt> to
+     * <tt>ppn+size-1</tt>, and <tt>vpn</tt> must be a multiple of
+     * <tt>size</tt>. Only TLB entries may be larger than one page.
+     */
+    public int size = 1;
 }
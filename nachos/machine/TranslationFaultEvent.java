@@ -0,0 +1,30 @@
+package nachos.machine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for an address translation that failed, such
+ * as a page fault or TLB miss. The JVM thread the event is recorded on is the
+ * one running the faulting Nachos thread.
+ */
+@Name("nachos.TranslationFault")
+@Label("Translation Fault")
+@Category({ "Nachos", "Machine" })
+@Description("A failed address translation by the simulated processor")
+final class TranslationFaultEvent extends Event {
+    @Label("Exception")
+    String exception;
+
+    @Label("Virtual Address")
+    int vaddr;
+
+    @Label("Writing")
+    boolean writing;
+
+    @Label("Simulated Tick")
+    long tick;
+}
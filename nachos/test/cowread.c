@@ -0,0 +1,105 @@
+/* cowread.c
+ *
+ * Checks that data the kernel writes into a copy-on-write page is seen by
+ * the user program that asked for it. After fork(), the child loads from
+ * two buffers, so that their read-only translations are cached: one shared
+ * with the parent, and one still mapped to the shared zero page. Then it
+ * read()s a file into both, and loads from them again.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define SIZE	256
+#define PAGESIZE	1024
+
+char sharedPages[3*PAGESIZE];
+char untouchedPages[3*PAGESIZE];
+char expected[SIZE];
+int sink;
+
+/* buffers in pages of their own, so nothing else touches them */
+char *shared, *untouched;
+
+int check(char *name, char *buffer)
+{
+  int i;
+
+  for (i=0; i<SIZE; i++) {
+    if (buffer[i] != expected[i]) {
+      printf("%s: byte %d is %d, expected %d\n", name, i, buffer[i],
+	     expected[i]);
+      return 1;
+    }
+  }
+
+  return 0;
+}
+
+int child()
+{
+  int fd, i, errors = 0;
+
+  /* cache read-only translations of both buffers */
+  for (i=0; i<SIZE; i++)
+    sink += shared[i] + untouched[i];
+
+  fd = open("cowread.dat");
+  if (fd == -1 || read(fd, shared, SIZE) != SIZE) {
+    printf("unable to read cowread.dat into shared buffer\n");
+    return 1;
+  }
+  close(fd);
+
+  fd = open("cowread.dat");
+  if (fd == -1 || read(fd, untouched, SIZE) != SIZE) {
+    printf("unable to read cowread.dat into untouched buffer\n");
+    return 1;
+  }
+  close(fd);
+
+  errors += check("shared", shared);
+  errors += check("untouched", untouched);
+  return errors;
+}
+
+int main(int argc, char** argv)
+{
+  int fd, pid, status, i;
+
+  shared = (char *) (((int) sharedPages + PAGESIZE-1) & ~(PAGESIZE-1));
+  untouched = (char *) (((int) untouchedPages + PAGESIZE-1) & ~(PAGESIZE-1));
+
+  for (i=0; i<SIZE; i++) {
+    expected[i] = 'a' + i%26;
+    shared[i] = 'p';
+  }
+
+  fd = creat("cowread.dat");
+  if (fd == -1 || write(fd, expected, SIZE) != SIZE) {
+    printf("unable to write cowread.dat\n");
+    return 1;
+  }
+  close(fd);
+
+  pid = fork();
+  if (pid == 0)
+    exit(child());
+
+  if (pid == -1 || join(pid, &status) != 1) {
+    printf("fork failed\n");
+    return 1;
+  }
+
+  for (i=0; i<SIZE; i++) {
+    if (shared[i] != 'p' || untouched[i] != 0) {
+      printf("parent's byte %d changed\n", i);
+      return 1;
+    }
+  }
+
+  unlink("cowread.dat");
+  printf("cowread: %s\n", status == 0 ? "passed" : "FAILED");
+  return status;
+}
@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallMunmap		13
+#define syscallFork		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +111,17 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new process that is a copy of the current one. The child shares
+ * the parent's memory copy-on-write: a page is only copied when one of the
+ * processes first writes to it. The child gets its own copies of the parent's
+ * open files and memory maps.
+ *
+ * Returns the child's process ID in the parent, 0 in the child, or -1 if an
+ * error occurred.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -215,18 +228,27 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Map length bytes of the file referenced by fileDescriptor, starting at byte
+ * offset of the file, into an unused part of the address space. offset must
+ * be a multiple of the page size. Pages are read from the file the first time
+ * they are touched.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * The map keeps its own reference to the file, so the file descriptor may be
+ * closed without affecting it. Dirty pages are written back to the file when
+ * the map is removed with munmap(), or when the process exits.
+ *
+ * Returns the address of the start of the map on success, or -1 if an error
+ * occurred.
+ */
+void *mmap(int fileDescriptor, int offset, int length);
+
+/**
+ * Remove the map starting at address, previously returned by mmap(). Dirty
+ * pages of the map are written back to the file first.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if no map starts at address.
  */
-int mmap(int fileDescriptor, char *address);
+int munmap(void *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
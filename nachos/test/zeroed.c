@@ -0,0 +1,78 @@
+/* zeroed.c
+ *
+ * Checks that freed pages are cleared before they are handed out again.
+ * Runs itself as a child several times. The first child fills a global
+ * array, so that most of physical memory has been used when it exits. The
+ * array is sized so that the parent and one child still fit in 64 pages.
+ * Each later child checks that a large stack buffer starts out zeroed,
+ * then dirties it and exits. While the parent waits in join(), the page
+ * zeroing thread should clear freed pages for the next child's stack.
+ *
+ * Check the statistics printed at halt: the "Page zeroing" line should
+ * show background zeroing and pre-zeroed allocations that are not 0. With
+ * UserKernel.zeroFreePages = false, only the first few children get pages
+ * that were never used.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define ROUNDS	8
+#define SIZE	(4*1024)
+#define DIRTYSIZE	(16*1024)
+
+char dirty[DIRTYSIZE];
+
+int dirtyMemory()
+{
+  int i;
+
+  for (i=0; i<DIRTYSIZE; i++)
+    dirty[i] = (char) 0xa5;
+
+  return 0;
+}
+
+int child()
+{
+  char buffer[SIZE];
+  int i;
+
+  for (i=0; i<SIZE; i++) {
+    if (buffer[i] != 0) {
+      printf("byte %d of a new stack page is %d\n", i, buffer[i]);
+      return 1;
+    }
+  }
+
+  for (i=0; i<SIZE; i++)
+    buffer[i] = (char) 0xa5;
+
+  return 0;
+}
+
+int main(int argc, char** argv)
+{
+  char *args[2];
+  int round, pid, status;
+
+  if (argc > 1 && strcmp(argv[1], "dirty") == 0)
+    return dirtyMemory();
+  if (argc > 1 && strcmp(argv[1], "child") == 0)
+    return child();
+
+  args[0] = "zeroed.coff";
+
+  for (round=0; round<ROUNDS; round++) {
+    args[1] = (round == 0) ? "dirty" : "child";
+    pid = exec("zeroed.coff", 2, args);
+    if (pid == -1 || join(pid, &status) != 1 || status != 0) {
+      printf("zeroed: FAILED in round %d\n", round);
+      return 1;
+    }
+  }
+
+  printf("zeroed: passed\n");
+  return 0;
+}
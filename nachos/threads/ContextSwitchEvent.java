@@ -0,0 +1,30 @@
+package nachos.threads;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for the dispatcher choosing the next thread to
+ * run. It is recorded on the JVM thread of the thread giving up the CPU.
+ */
+@Name("nachos.ContextSwitch")
+@Label("Context Switch")
+@Category({ "Nachos", "Threads" })
+@Description("The dispatcher switching to another KThread")
+final class ContextSwitchEvent extends Event {
+    @Label("From Thread")
+    String fromThread;
+
+    @Label("To Thread")
+    String toThread;
+
+    @Label("Reason")
+    @Description("Whether the old thread yielded, blocked or finished")
+    String reason;
+
+    @Label("Simulated Tick")
+    long tick;
+}
@@ -91,6 +91,7 @@ public class KThread {
      */
     public KThread setName(String name) {
 	this.name = name;
+	traceName = -1;
 	return this;
     }
 
@@ -114,6 +115,17 @@ public class KThread {
 	return (name + " (#" + id + ")");
     }
 
+    /**
+     * Return the ID the tracer gives this thread's full name. The name is
+     * only interned the first time it is traced, so nothing is formatted
+     * while tracing is off.
+     */
+    private int traceName() {
+	if (traceName == -1 && Tracer.enabled(dbgThread))
+	    traceName = Tracer.intern(toString());
+	return traceName;
+    }
+
     /**
      * Deterministically and consistently compare this thread to another
      * thread.
@@ -139,8 +151,7 @@ public class KThread {
 	Lib.assertTrue(status == statusNew);
 	Lib.assertTrue(target != null);
 	
-	Lib.debug(dbgThread,
-		  "Forking thread: " + toString() + " Runnable: " + target);
+	Tracer.trace(traceFork, traceName());
 
 	boolean intStatus = Machine.interrupt().disable();
 
@@ -162,7 +173,7 @@ public class KThread {
     }
 
     private void begin() {
-	Lib.debug(dbgThread, "Beginning thread: " + toString());
+	Tracer.trace(traceBegin, traceName());
 	
 	Lib.assertTrue(this == currentThread);
 
@@ -182,7 +193,7 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-	Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+	Tracer.trace(traceFinish, currentThread.traceName());
 	
 	Machine.interrupt().disable();
 
@@ -214,7 +225,7 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-	Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+	Tracer.trace(traceYield, currentThread.traceName());
 	
 	Lib.assertTrue(currentThread.status == statusRunning);
 	
@@ -239,7 +250,7 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-	Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+	Tracer.trace(traceSleep, currentThread.traceName());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -254,7 +265,7 @@ public class KThread {
      * ready queue.
      */
     public void ready() {
-	Lib.debug(dbgThread, "Ready thread: " + toString());
+	Tracer.trace(traceReady, traceName());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
@@ -273,7 +284,7 @@ public class KThread {
      * thread.
      */
     public void join() {
-	Lib.debug(dbgThread, "Joining to thread: " + toString());
+	Tracer.trace(traceJoin, traceName());
 
 	Lib.assertTrue(this != currentThread);
 	
@@ -325,6 +336,16 @@ public class KThread {
 	if (nextThread == null)
 	    nextThread = idleThread;
 
+	ContextSwitchEvent event = new ContextSwitchEvent();
+	if (event.shouldCommit()) {
+	    event.fromThread = currentThread.toString();
+	    event.toThread = nextThread.toString();
+	    event.reason = (currentThread.status == statusReady) ? "yield" :
+		(currentThread.status == statusFinished) ? "finish" : "block";
+	    event.tick = Machine.timer().getTime();
+	    Machine.commitKernelEvent(event);
+	}
+
 	nextThread.run();
     }
 
@@ -355,8 +376,7 @@ public class KThread {
 
 	currentThread.saveState();
 
-	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-		  + " to: " + toString());
+	Tracer.trace(traceSwitch, currentThread.traceName(), traceName());
 
 	currentThread = this;
 
@@ -370,7 +390,7 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-	Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+	Tracer.trace(traceRun, currentThread.traceName());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
@@ -576,6 +596,26 @@ public class KThread {
 
     private static final char dbgThread = 't';
 
+    private static final int traceFork =
+	Tracer.defineEvent(dbgThread, "thread.fork", "Forking thread: %s");
+    private static final int traceBegin =
+	Tracer.defineEvent(dbgThread, "thread.begin", "Beginning thread: %s");
+    private static final int traceFinish =
+	Tracer.defineEvent(dbgThread, "thread.finish", "Finishing thread: %s");
+    private static final int traceYield =
+	Tracer.defineEvent(dbgThread, "thread.yield", "Yielding thread: %s");
+    private static final int traceSleep =
+	Tracer.defineEvent(dbgThread, "thread.sleep", "Sleeping thread: %s");
+    private static final int traceReady =
+	Tracer.defineEvent(dbgThread, "thread.ready", "Ready thread: %s");
+    private static final int traceJoin =
+	Tracer.defineEvent(dbgThread, "thread.join", "Joining to thread: %s");
+    private static final int traceSwitch =
+	Tracer.defineEvent(dbgThread, "thread.switch",
+			   "Switching from: %s to: %s");
+    private static final int traceRun =
+	Tracer.defineEvent(dbgThread, "thread.run", "Running thread: %s");
+
     /**
      * Additional state used by schedulers.
      *
@@ -596,6 +636,8 @@ public class KThread {
      */
     private int status = statusNew;
     private String name = "(unnamed thread)";
+    /** The tracer's ID for <tt>toString()</tt>, or -1 if not yet interned. */
+    private int traceName = -1;
     private Runnable target;
     private TCB tcb;
 
@@ -0,0 +1,153 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A parsed COFF executable kept by the kernel between execs. The headers are
+ * parsed once, and the contents of each initialized page are kept after the
+ * first time the page is loaded, so later processes running the executable
+ * don't have to read it from the file system again.
+ *
+ * <p>
+ * The underlying executable file stays open until the image is closed. The
+ * kernel closes it once the image has been dropped from its cache and no
+ * process is using it any more.
+ *
+ * @see	UserKernel#openExecutable
+ */
+public class CachedCoff extends Coff {
+    /**
+     * Allocate a new image of a loaded executable.
+     *
+     * @param	name	the name of the executable.
+     * @param	coff	the loaded executable. The image takes ownership of it.
+     */
+    public CachedCoff(String name, Coff coff) {
+	this(name, coff, null);
+    }
+
+    /**
+     * Allocate a new image of a loaded executable, along with its symbols.
+     *
+     * @param	name	the name of the executable.
+     * @param	coff	the loaded executable. The image takes ownership of it.
+     * @param	symbols	the executable's symbol table, or <tt>null</tt>.
+     */
+    public CachedCoff(String name, Coff coff, SymbolTable symbols) {
+	super();
+
+	this.name = name;
+	this.coff = coff;
+	this.symbols = symbols;
+
+	entryPoint = coff.getEntryPoint();
+	sections = new CoffSection[coff.getNumSections()];
+	for (int s=0; s<sections.length; s++)
+	    sections[s] = new CachedSection(this, coff.getSection(s));
+    }
+
+    /**
+     * Return the name of the executable.
+     *
+     * @return	the name of the executable.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Return the executable's symbol table, if it was read.
+     *
+     * @return	the symbol table, or <tt>null</tt>.
+     */
+    public SymbolTable getSymbolTable() {
+	return symbols;
+    }
+
+    /**
+     * Return the program entry point.
+     *
+     * @return	the program entry point.
+     */
+    public int getEntryPoint() {
+	Lib.assertTrue(sections != null);
+
+	return entryPoint;
+    }
+
+    /**
+     * Close the executable file and discard the cached section contents.
+     */
+    public void close() {
+	Lib.debug(dbgCoff, "\tclosing cached image of " + name);
+
+	coff.close();
+	sections = null;
+    }
+
+    private static class CachedSection extends CoffSection {
+	CachedSection(CachedCoff coff, CoffSection section) {
+	    super(coff, section.getName(), false, section.isReadOnly(),
+		  section.getLength(), section.getFirstVPN());
+
+	    this.section = section;
+	    initialized = section.isInitialzed();
+	    pages = new byte[numPages][];
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+
+	    Processor processor = Machine.processor();
+	    int paddr = ppn*pageSize;
+
+	    if (pages[spn] != null) {
+		processor.writeMemory(paddr, pages[spn], 0, pageSize);
+		return;
+	    }
+
+	    section.loadPage(spn, ppn);
+
+	    // uninitialized pages are just zero-filled, so there's nothing to keep
+	    if (initialized) {
+		pages[spn] = new byte[pageSize];
+		processor.readMemory(paddr, pages[spn], 0, pageSize);
+	    }
+	}
+
+	public void loadPages(int spn, int[] ppns) {
+	    Lib.assertTrue(spn>=0 && spn+ppns.length<=numPages);
+
+	    boolean cached = true;
+	    for (int i=0; i<ppns.length; i++)
+		cached &= (pages[spn+i] != null);
+
+	    if (cached || !initialized) {
+		for (int i=0; i<ppns.length; i++)
+		    loadPage(spn+i, ppns[i]);
+		return;
+	    }
+
+	    section.loadPages(spn, ppns);
+
+	    Processor processor = Machine.processor();
+	    for (int i=0; i<ppns.length; i++) {
+		if (pages[spn+i] == null) {
+		    pages[spn+i] = new byte[pageSize];
+		    processor.readMemory(ppns[i]*pageSize, pages[spn+i], 0,
+					 pageSize);
+		}
+	    }
+	}
+
+	private CoffSection section;
+	private byte[][] pages;
+    }
+
+    private String name;
+    private Coff coff;
+    private SymbolTable symbols;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgCoff = 'c';
+}
@@ -6,4 +6,6 @@ public class FileDescriptor {
 	
 	public  OpenFile file = null;
 	public  String   fileName = "";
+	/** Set once the file has been written through this descriptor. */
+	public  boolean  written = false;
 }
@@ -0,0 +1,169 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+
+/**
+ * A region of a user process's virtual address space that is backed by a
+ * file. Pages of the region are read from the file when they are first
+ * touched, and dirty pages are written back when the region is unmapped.
+ *
+ * @see	UserProcess
+ */
+public class MemoryMap {
+    /**
+     * Allocate a new memory map.
+     *
+     * @param	file		the file backing the region. The map takes
+     *				ownership of this file and closes it when the
+     *				region is unmapped.
+     * @param	fileOffset	the offset in the file of the first byte of the
+     *				region. Must be a multiple of the page size.
+     * @param	length		the length of the region, in bytes.
+     * @param	firstVPN	the first virtual page of the region.
+     */
+    public MemoryMap(OpenFile file, int fileOffset, int length,
+		     int firstVPN) {
+	Lib.assertTrue(fileOffset >= 0 && fileOffset % pageSize == 0);
+	Lib.assertTrue(length > 0);
+
+	this.file = file;
+	this.fileOffset = fileOffset;
+	this.length = length;
+	this.firstVPN = firstVPN;
+	this.numPages = Lib.divRoundUp(length, pageSize);
+    }
+
+    /**
+     * Return the first virtual page number used by this region.
+     *
+     * @return	the first virtual page number used by this region.
+     */
+    public int getFirstVPN() {
+	return firstVPN;
+    }
+
+    /**
+     * Return the length of this region in pages.
+     *
+     * @return	the number of pages in this region.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Return the name of the file backing this region.
+     *
+     * @return	the name of the file.
+     */
+    public String getFileName() {
+	return file.getName();
+    }
+
+    /**
+     * Return the offset in the file of the first byte of this region.
+     *
+     * @return	the offset of this region in the file.
+     */
+    public int getFileOffset() {
+	return fileOffset;
+    }
+
+    /**
+     * Return the length of this region in bytes.
+     *
+     * @return	the number of bytes of the file in this region.
+     */
+    public int getLength() {
+	return length;
+    }
+
+    /**
+     * Test whether the specified virtual page lies inside this region.
+     *
+     * @param	vpn	the virtual page to test.
+     * @return	<tt>true</tt> if <i>vpn</i> is part of this region.
+     */
+    public boolean contains(int vpn) {
+	return vpn >= firstVPN && vpn < firstVPN+numPages;
+    }
+
+    /**
+     * Load a page of this region from the file into physical memory. Bytes
+     * past the end of the file or the region are zero-filled.
+     *
+     * @param	vpn	the virtual page to load.
+     * @param	ppn	the physical page to load into.
+     */
+    public void loadPage(int vpn, int ppn) {
+	Lib.assertTrue(contains(vpn));
+
+	byte[] buf = new byte[pageSize];
+	int pos = fileOffset + (vpn-firstVPN)*pageSize;
+
+	// whatever isn't read from the file is left zero
+	file.read(pos, buf, 0, bytesInPage(vpn));
+
+	Machine.processor().writeMemory(ppn*pageSize, buf, 0, pageSize);
+    }
+
+    /**
+     * Write a page of this region from physical memory back to the file.
+     * Only the part of the page that lies inside the region is written. If
+     * the file is an executable, its cached image and shared text are
+     * dropped, so that the next <tt>exec()</tt> of it sees the change.
+     *
+     * @param	vpn	the virtual page to write back.
+     * @param	ppn	the physical page holding its contents.
+     * @return	<tt>true</tt> if the page was written successfully.
+     */
+    public boolean writeBack(int vpn, int ppn) {
+	Lib.assertTrue(contains(vpn));
+
+	int pos = fileOffset + (vpn-firstVPN)*pageSize;
+	int amount = bytesInPage(vpn);
+
+	byte[] buf = new byte[amount];
+	Machine.processor().readMemory(ppn*pageSize, buf, 0, amount);
+
+	boolean success = file.write(pos, buf, 0, amount) == amount;
+
+	// after the write, since an exec() may have cached the file while it
+	// was being written
+	UserKernel.invalidateExecutable(file.getName());
+	return success;
+    }
+
+    /**
+     * Allocate a copy of this map, at the same addresses, with its own handle
+     * on the file.
+     *
+     * @return	the new map, or <tt>null</tt> if the file could not be opened
+     *		again.
+     */
+    public MemoryMap duplicate() {
+	OpenFile copy = file.getFileSystem().open(file.getName(), false);
+	if (copy == null)
+	    return null;
+
+	return new MemoryMap(copy, fileOffset, length, firstVPN);
+    }
+
+    /**
+     * Close the file backing this region.
+     */
+    public void close() {
+	file.close();
+    }
+
+    private int bytesInPage(int vpn) {
+	return Math.min(pageSize, length - (vpn-firstVPN)*pageSize);
+    }
+
+    private OpenFile file;
+    private int fileOffset, length;
+    private int firstVPN, numPages;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,363 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of which physical pages are free, with one bit per page. Single
+ * pages are found by scanning a word at a time from where the last search
+ * left off, so allocation takes constant time on average. Runs of contiguous
+ * pages can also be allocated, for bulk copies or large pages.
+ *
+ * <p>
+ * Free pages are either dirty or known to be zero-filled. Ordinary allocations
+ * take dirty pages when there are any, leaving the zero-filled ones for
+ * <tt>allocateZeroed()</tt>. A page becomes zero-filled when its owner calls
+ * <tt>markClean()</tt> after clearing it, and dirty again once it is allocated.
+ *
+ * <p>
+ * Every allocated page is charged to an owner, normally the ID of the process
+ * it was allocated for, so that the number of pages each process holds can be
+ * reported. Pages allocated by the kernel itself are charged to
+ * <tt>kernelOwner</tt>.
+ *
+ * <p>
+ * The allocator does no synchronization of its own; the caller must make sure
+ * that it is not used by two threads at once.
+ */
+public class PageAllocator {
+    /**
+     * Allocate a new page allocator with every page free.
+     *
+     * @param	numPages	the number of physical pages.
+     */
+    public PageAllocator(int numPages) {
+	this.numPages = numPages;
+
+	freeBits = new long[(numPages + wordSize-1) / wordSize];
+	Arrays.fill(freeBits, -1L);
+	if (numPages % wordSize != 0)
+	    freeBits[freeBits.length-1] = (1L << (numPages % wordSize)) - 1;
+	numFree = numPages;
+
+	cleanBits = new long[freeBits.length];
+	numClean = 0;
+
+	owners = new int[numPages];
+	Arrays.fill(owners, noOwner);
+    }
+
+    /**
+     * Allocate a single page.
+     *
+     * @param	owner	the process ID to charge the page to.
+     * @return	the physical page number, or -1 if no page is free.
+     */
+    public int allocate(int owner) {
+	if (numFree == 0)
+	    return -1;
+
+	// only use up a zero-filled page if there's nothing else
+	int ppn = search(numFree == numClean);
+	take(ppn, owner);
+	return ppn;
+    }
+
+    /**
+     * Allocate a single page that is known to be zero-filled.
+     *
+     * @param	owner	the process ID to charge the page to.
+     * @return	the physical page number, or -1 if no free page is
+     *		zero-filled.
+     */
+    public int allocateZeroed(int owner) {
+	if (numClean == 0)
+	    return -1;
+
+	int ppn = search(true);
+	take(ppn, owner);
+	return ppn;
+    }
+
+    /**
+     * Allocate a specific page, if it is free.
+     *
+     * @param	ppn	the physical page to allocate.
+     * @param	owner	the process ID to charge the page to.
+     * @return	<tt>true</tt> if the page was free and is now allocated.
+     */
+    public boolean allocateAt(int ppn, int owner) {
+	if (ppn < 0 || ppn >= numPages || !isFree(ppn))
+	    return false;
+
+	take(ppn, owner);
+	return true;
+    }
+
+    /**
+     * Find an aligned block of free pages, without allocating it.
+     *
+     * @param	size	the number of pages in the block, a power of two no
+     *			larger than 64.
+     * @return	the first page of the block, a multiple of <i>size</i>, or
+     *		-1 if there is no such block.
+     */
+    public int findFreeBlock(int size) {
+	Lib.assertTrue(size > 0 && size <= wordSize && (size & (size-1)) == 0);
+
+	long mask = (size == wordSize) ? -1L : (1L << size) - 1;
+	for (int word=0; word<freeBits.length; word++) {
+	    for (int shift=0; shift<wordSize; shift+=size) {
+		if (((freeBits[word] >>> shift) & mask) == mask)
+		    return word*wordSize + shift;
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Allocate several pages at once.
+     *
+     * @param	count	the number of pages to allocate.
+     * @param	contiguous	<tt>true</tt> if the pages must be consecutive.
+     * @param	owner	the process ID to charge the pages to.
+     * @return	the physical page numbers, in increasing order, or
+     *		<tt>null</tt> if there are not enough free pages (or no run of
+     *		consecutive free pages long enough).
+     */
+    public int[] allocate(int count, boolean contiguous, int owner) {
+	Lib.assertTrue(count >= 0);
+
+	if (count > numFree)
+	    return null;
+	if (count == 0)
+	    return new int[0];
+
+	int[] ppns = new int[count];
+
+	if (!contiguous) {
+	    for (int i=0; i<count; i++)
+		ppns[i] = allocate(owner);
+	    Arrays.sort(ppns);
+	    return ppns;
+	}
+
+	int first = findRun(count);
+	if (first == -1)
+	    return null;
+
+	for (int i=0; i<count; i++) {
+	    ppns[i] = first+i;
+	    take(first+i, owner);
+	}
+	return ppns;
+    }
+
+    /**
+     * Free a page, removing it from its owner's count.
+     *
+     * @param	ppn	the physical page to free.
+     */
+    public void free(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPages);
+	Lib.assertTrue(!isFree(ppn));
+
+	freeBits[ppn / wordSize] |= 1L << (ppn % wordSize);
+	numFree++;
+
+	charge(owners[ppn], -1);
+	owners[ppn] = noOwner;
+    }
+
+    /**
+     * Find a free page that is not known to be zero-filled, without
+     * allocating it.
+     *
+     * @return	the physical page number, or -1 if every free page is
+     *		zero-filled.
+     */
+    public int findDirty() {
+	if (numFree == numClean)
+	    return -1;
+
+	return search(false);
+    }
+
+    /**
+     * Record that a free page has been zero-filled.
+     *
+     * @param	ppn	the free page that was cleared.
+     */
+    public void markClean(int ppn) {
+	Lib.assertTrue(isFree(ppn) && !isClean(ppn));
+
+	cleanBits[ppn / wordSize] |= 1L << (ppn % wordSize);
+	numClean++;
+    }
+
+    /**
+     * Record that a free page may no longer be zero-filled, because its
+     * contents were replaced without going through the allocator.
+     *
+     * @param	ppn	the free page.
+     */
+    public void markDirty(int ppn) {
+	Lib.assertTrue(isFree(ppn));
+
+	if (isClean(ppn)) {
+	    cleanBits[ppn / wordSize] &= ~(1L << (ppn % wordSize));
+	    numClean--;
+	}
+    }
+
+    /**
+     * Test whether a page is free and known to be zero-filled.
+     *
+     * @param	ppn	the physical page to test.
+     * @return	<tt>true</tt> if the page is free and zero-filled.
+     */
+    public boolean isClean(int ppn) {
+	return (cleanBits[ppn / wordSize] & (1L << (ppn % wordSize))) != 0;
+    }
+
+    /**
+     * Test whether a page is free.
+     *
+     * @param	ppn	the physical page to test.
+     * @return	<tt>true</tt> if the page is free.
+     */
+    public boolean isFree(int ppn) {
+	return (freeBits[ppn / wordSize] & (1L << (ppn % wordSize))) != 0;
+    }
+
+    /**
+     * Return the number of free pages.
+     *
+     * @return	the number of free pages.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the number of free pages known to be zero-filled.
+     *
+     * @return	the number of zero-filled free pages.
+     */
+    public int getNumClean() {
+	return numClean;
+    }
+
+    /**
+     * Return the owner a page is charged to.
+     *
+     * @param	ppn	the physical page.
+     * @return	the owner's process ID, <tt>kernelOwner</tt>, or
+     *		<tt>noOwner</tt> if the page is free.
+     */
+    public int getOwner(int ppn) {
+	return owners[ppn];
+    }
+
+    /**
+     * Return the number of pages charged to an owner.
+     *
+     * @param	owner	the process ID, or <tt>kernelOwner</tt>.
+     * @return	the number of pages allocated for <i>owner</i> and not yet
+     *		freed.
+     */
+    public int getNumAllocated(int owner) {
+	if (owner == kernelOwner)
+	    return kernelPages;
+	if (owner < 0 || owner >= ownerPages.length)
+	    return 0;
+
+	return ownerPages[owner];
+    }
+
+    private void take(int ppn, int owner) {
+	Lib.assertTrue(isFree(ppn));
+
+	freeBits[ppn / wordSize] &= ~(1L << (ppn % wordSize));
+	numFree--;
+	if (isClean(ppn)) {
+	    cleanBits[ppn / wordSize] &= ~(1L << (ppn % wordSize));
+	    numClean--;
+	}
+
+	owners[ppn] = owner;
+	charge(owner, 1);
+    }
+
+    /**
+     * Find a free page, either zero-filled or not. The caller must make sure
+     * there is one.
+     */
+    private int search(boolean clean) {
+	// start where the last search left off
+	int word = hint;
+	while (searchBits(word, clean) == 0)
+	    word = (word+1) % freeBits.length;
+	hint = word;
+
+	return word*wordSize + Long.numberOfTrailingZeros(searchBits(word, clean));
+    }
+
+    private long searchBits(int word, boolean clean) {
+	return clean ? cleanBits[word] : (freeBits[word] & ~cleanBits[word]);
+    }
+
+    private void charge(int owner, int pages) {
+	if (owner == kernelOwner) {
+	    kernelPages += pages;
+	    return;
+	}
+
+	if (owner >= ownerPages.length)
+	    ownerPages = Arrays.copyOf(ownerPages,
+				       Math.max(owner+1, ownerPages.length*2));
+	ownerPages[owner] += pages;
+    }
+
+    private int findRun(int count) {
+	int run = 0;
+	for (int ppn=0; ppn<numPages; ppn++) {
+	    if (!isFree(ppn)) {
+		run = 0;
+
+		// skip whole words with nothing free
+		while (ppn+1 < numPages && (ppn+1) % wordSize == 0 &&
+		       freeBits[(ppn+1) / wordSize] == 0)
+		    ppn += wordSize;
+	    }
+	    else if (++run == count) {
+		return ppn-count+1;
+	    }
+	}
+
+	return -1;
+    }
+
+    /** The owner of a page allocated by the kernel itself. */
+    public static final int kernelOwner = -1;
+    /** The owner recorded for a free page. */
+    public static final int noOwner = -2;
+
+    private int numPages;
+    private int numFree;
+    /** One bit per page, set if the page is free. */
+    private long[] freeBits;
+    private int numClean;
+    /** One bit per page, set if the page is free and zero-filled. */
+    private long[] cleanBits;
+    /** The word where the next single-page search starts. */
+    private int hint = 0;
+
+    private int[] owners;
+    private int[] ownerPages = new int[16];
+    private int kernelPages = 0;
+
+    private static final int wordSize = 64;
+}
@@ -0,0 +1,273 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A profiler for user programs, driven by the processor as it executes them.
+ * It can sample the program counter at regular intervals of user time, and
+ * count exactly how many times each basic block is entered and each call
+ * made. Counts are kept per executable, indexed by instruction address, and
+ * are mapped back to procedure names through the executable's symbol table
+ * when the profile is printed.
+ *
+ * <p>
+ * The profiler is enabled by the <tt>nachos.conf</tt> keys
+ * <tt>Profiler.sampleTicks</tt>, the number of user ticks between samples,
+ * and <tt>Profiler.countBlocks</tt>. The profile is printed when the kernel
+ * terminates.
+ *
+ * @see	nachos.machine.Processor#setMonitor
+ */
+public class Profiler implements Processor.Monitor {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	sampleTicks	the number of user ticks between samples, or 0
+     *				if the processor does not sample.
+     */
+    public Profiler(int sampleTicks) {
+	this.sampleTicks = sampleTicks;
+    }
+
+    public void sample(int pc) {
+	Program program = currentProgram();
+	if (program == null)
+	    return;
+
+	int index = program.index(pc);
+	if (index == -1)
+	    program.otherSamples++;
+	else
+	    program.samples[index]++;
+	program.totalSamples++;
+    }
+
+    public void branch(int from, int to, boolean call) {
+	Program program = currentProgram();
+	if (program == null)
+	    return;
+
+	int index = program.index(to);
+	if (index != -1)
+	    program.blocks[index]++;
+
+	if (call) {
+	    Long key = ((long) from << 32) | (to & 0xFFFFFFFFL);
+	    int[] count = program.calls.get(key);
+	    if (count == null)
+		program.calls.put(key, new int[] { 1 });
+	    else
+		count[0]++;
+	}
+    }
+
+    /**
+     * Print the profile of every executable that ran: a flat profile by
+     * procedure, the most frequently entered basic blocks, and the number of
+     * calls between each pair of procedures.
+     */
+    public void print() {
+	for (Program program : programs.values())
+	    program.print();
+    }
+
+    /**
+     * Return the counts for the executable the current process is running.
+     * The last lookup is remembered, since consecutive calls almost always
+     * come from the same process.
+     */
+    private Program currentProgram() {
+	UserProcess process = UserKernel.currentProcess();
+	if (process == lastProcess)
+	    return lastProgram;
+
+	lastProcess = process;
+	lastProgram = null;
+	if (process == null || !(process.coff instanceof CachedCoff))
+	    return null;
+
+	CachedCoff coff = (CachedCoff) process.coff;
+	lastProgram = programs.get(coff.getName());
+	if (lastProgram == null) {
+	    lastProgram = new Program(coff);
+	    programs.put(coff.getName(), lastProgram);
+	}
+	return lastProgram;
+    }
+
+    private class Program {
+	Program(CachedCoff coff) {
+	    name = coff.getName();
+	    symbols = coff.getSymbolTable();
+
+	    int firstVPN = Integer.MAX_VALUE, lastVPN = 0;
+	    for (int s=0; s<coff.getNumSections(); s++) {
+		CoffSection section = coff.getSection(s);
+		firstVPN = Math.min(firstVPN, section.getFirstVPN());
+		lastVPN = Math.max(lastVPN,
+				   section.getFirstVPN() + section.getLength());
+	    }
+	    if (firstVPN > lastVPN)
+		firstVPN = lastVPN;
+
+	    base = firstVPN * pageSize;
+	    samples = new int[(lastVPN-firstVPN) * pageSize / 4];
+	    blocks = new int[samples.length];
+	}
+
+	int index(int pc) {
+	    int index = (pc - base) >>> 2;
+	    return (index < samples.length) ? index : -1;
+	}
+
+	String describe(int address) {
+	    if (symbols == null)
+		return "0x" + Lib.toHexString(address);
+	    return symbols.describe(address);
+	}
+
+	String procedure(int address) {
+	    if (symbols == null || symbols.findProcedure(address) == -1)
+		return "0x" + Lib.toHexString(address);
+	    return symbols.getName(symbols.findProcedure(address));
+	}
+
+	void print() {
+	    System.out.println("Profile of " + name + ":");
+	    if (symbols == null)
+		System.out.println("\tno symbols");
+
+	    printFlat();
+	    printBlocks();
+	    printCalls();
+	    System.out.println();
+	}
+
+	void printFlat() {
+	    // sum the counts of each procedure's instructions
+	    LinkedHashMap<String, long[]> procedures =
+		new LinkedHashMap<String, long[]>();
+	    for (int i=0; i<samples.length; i++) {
+		if (samples[i] == 0 && blocks[i] == 0)
+		    continue;
+
+		String procedure = procedure(base + i*4);
+		long[] counts = procedures.get(procedure);
+		if (counts == null) {
+		    counts = new long[2];
+		    procedures.put(procedure, counts);
+		}
+		counts[0] += samples[i];
+		counts[1] += blocks[i];
+	    }
+
+	    ArrayList<Map.Entry<String, long[]>> sorted =
+		new ArrayList<Map.Entry<String, long[]>>(procedures.entrySet());
+	    sorted.sort(new Comparator<Map.Entry<String, long[]>>() {
+		    public int compare(Map.Entry<String, long[]> a,
+				       Map.Entry<String, long[]> b) {
+			if (a.getValue()[0] != b.getValue()[0])
+			    return Long.compare(b.getValue()[0], a.getValue()[0]);
+			return Long.compare(b.getValue()[1], a.getValue()[1]);
+		    }
+		});
+
+	    if (sampleTicks > 0)
+		System.out.println("\t" + totalSamples + " samples, one every " +
+				   sampleTicks + " user ticks (" + otherSamples +
+				   " outside the executable)");
+	    System.out.println("\t   samples       %       blocks  procedure");
+	    for (Map.Entry<String, long[]> entry : sorted) {
+		long[] counts = entry.getValue();
+		double percent = (totalSamples == 0) ? 0.0 :
+		    100.0 * counts[0] / totalSamples;
+		System.out.println(String.format("\t%10d  %5.1f%%  %11d  %s",
+						 counts[0], percent, counts[1],
+						 entry.getKey()));
+	    }
+	}
+
+	void printBlocks() {
+	    Integer[] order = new Integer[blocks.length];
+	    int count = 0;
+	    for (int i=0; i<blocks.length; i++) {
+		if (blocks[i] != 0)
+		    order[count++] = i;
+	    }
+	    if (count == 0)
+		return;
+
+	    order = Arrays.copyOf(order, count);
+	    Arrays.sort(order, new Comparator<Integer>() {
+		    public int compare(Integer a, Integer b) {
+			return Integer.compare(blocks[b], blocks[a]);
+		    }
+		});
+
+	    System.out.println("\thottest basic blocks:");
+	    for (int i=0; i<Math.min(count, hottestBlocks); i++) {
+		System.out.println(String.format("\t%11d  %s", blocks[order[i]],
+						 describe(base + order[i]*4)));
+	    }
+	}
+
+	void printCalls() {
+	    if (calls.isEmpty())
+		return;
+
+	    // merge the call sites within each caller
+	    TreeMap<String, long[]> arcs = new TreeMap<String, long[]>();
+	    for (Map.Entry<Long, int[]> entry : calls.entrySet()) {
+		int from = (int) (entry.getKey() >>> 32);
+		int to = (int) (long) entry.getKey();
+		String arc = procedure(from) + " -> " + procedure(to);
+
+		long[] count = arcs.get(arc);
+		if (count == null) {
+		    count = new long[1];
+		    arcs.put(arc, count);
+		}
+		count[0] += entry.getValue()[0];
+	    }
+
+	    System.out.println("\tcall graph:");
+	    for (Map.Entry<String, long[]> entry : arcs.entrySet()) {
+		System.out.println(String.format("\t%11d  %s",
+						 entry.getValue()[0],
+						 entry.getKey()));
+	    }
+	}
+
+	String name;
+	SymbolTable symbols;
+	/** The address counted in the first element of each array. */
+	int base;
+	/** Samples taken at each instruction. */
+	int[] samples;
+	/** The number of times each instruction began a basic block. */
+	int[] blocks;
+	long totalSamples = 0, otherSamples = 0;
+	/** Call counts, keyed by call site and target. */
+	HashMap<Long, int[]> calls = new HashMap<Long, int[]>();
+    }
+
+    private int sampleTicks;
+
+    /** Counts for each executable, by name, in the order they first ran. */
+    private LinkedHashMap<String, Program> programs =
+	new LinkedHashMap<String, Program>();
+
+    private UserProcess lastProcess = null;
+    private Program lastProgram = null;
+
+    private static final int hottestBlocks = 10;
+    private static final int pageSize = Processor.pageSize;
+}
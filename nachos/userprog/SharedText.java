@@ -0,0 +1,135 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * The physical pages holding the read-only sections of an executable, shared
+ * by every process running it. A process that finds the executable in the
+ * kernel's cache maps these pages instead of loading the sections itself.
+ *
+ * <p>
+ * The cache entry holds its own reference on each page for as long as any
+ * process is using it, so that the pages stay loaded even if the process
+ * that loaded them exits.
+ *
+ * @see	UserKernel#getSharedText
+ */
+public class SharedText {
+    /**
+     * Allocate a new, empty shared text entry.
+     *
+     * @param	name	the name of the executable.
+     * @param	numPages	the number of pages in the executable's sections.
+     */
+    public SharedText(String name, int numPages) {
+	this.name = name;
+	this.pages = new int[numPages];
+	Arrays.fill(pages, -1);
+    }
+
+    /**
+     * Return the name of the executable.
+     *
+     * @return	the name of the executable.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Return the number of pages in the executable's sections, including
+     * those that aren't shared.
+     *
+     * @return	the number of pages covered by this entry.
+     */
+    public int getNumPages() {
+	return pages.length;
+    }
+
+    /**
+     * Return the physical page holding the specified page of the executable.
+     *
+     * @param	vpn	the virtual page in the executable.
+     * @return	the shared physical page, or -1 if <i>vpn</i> is not part of a
+     *		read-only section.
+     */
+    public int getPage(int vpn) {
+	if (vpn < 0 || vpn >= pages.length)
+	    return -1;
+
+	return pages[vpn];
+    }
+
+    /**
+     * Record a loaded read-only page. The entry adds its own reference to the
+     * physical page. If another process already recorded a copy of the page,
+     * the new copy is left private to its process.
+     *
+     * @param	vpn	the virtual page in the executable.
+     * @param	ppn	the physical page it was loaded into.
+     */
+    public void addPage(int vpn, int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (pages[vpn] == -1 && users > 0) {
+	    UserKernel.referencePage(ppn);
+	    pages[vpn] = ppn;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Forget a page, dropping the entry's reference to it. Called when the
+     * page is evicted from memory; the next process to touch it loads it
+     * again.
+     *
+     * @param	vpn	the virtual page in the executable.
+     */
+    public void removePage(int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (getPage(vpn) != -1) {
+	    UserKernel.releasePage(pages[vpn]);
+	    pages[vpn] = -1;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Add a process using this entry.
+     */
+    public void retain() {
+	boolean intStatus = Machine.interrupt().disable();
+	users++;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop a process using this entry. When the last process is gone, the
+     * entry is removed from the cache and its page references are released.
+     */
+    public void release() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(users > 0);
+	if (--users == 0) {
+	    UserKernel.invalidateSharedText(this);
+
+	    for (int vpn=0; vpn<pages.length; vpn++) {
+		if (pages[vpn] != -1)
+		    UserKernel.releasePage(pages[vpn]);
+	    }
+	    Arrays.fill(pages, -1);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private String name;
+    private int[] pages;
+    private int users = 0;
+}
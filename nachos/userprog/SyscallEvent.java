@@ -0,0 +1,38 @@
+package nachos.userprog;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for a system call, timed from when the kernel
+ * started handling it to when it returned to the user program. Calls that
+ * never return, such as <tt>exit()</tt>, are not recorded.
+ */
+@Name("nachos.Syscall")
+@Label("Syscall")
+@Category({ "Nachos", "User Processes" })
+@Description("A system call made by a user process")
+final class SyscallEvent extends Event {
+    @Label("Syscall")
+    int syscall;
+
+    @Label("Process ID")
+    int pid;
+
+    @Label("Thread")
+    String thread;
+
+    @Label("Result")
+    int result;
+
+    @Label("Simulated Tick")
+    @Description("The simulated time at which the call was made")
+    long tick;
+
+    @Label("Simulated Ticks")
+    @Description("The simulated time the call took, including waiting")
+    long ticks;
+}
@@ -22,9 +22,31 @@ public class UThread extends KThread {
 	    });
 
 	this.process = process;
+	process.thread = this;
+    }
+
+    /**
+     * Return the user registers of this thread: the processor's, if this
+     * thread is running, or the copy saved when it last gave up the
+     * processor.
+     *
+     * @return	a copy of the user registers, or <tt>null</tt> if this thread
+     *		has not started running its program yet.
+     */
+    public int[] getUserRegisters() {
+	if (!started)
+	    return null;
+
+	int[] registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<Processor.numUserRegisters; i++) {
+	    registers[i] = (this == KThread.currentThread()) ?
+		Machine.processor().readRegister(i) : userRegisters[i];
+	}
+	return registers;
     }
 
     private void runProgram() {
+	started = true;
 	process.initRegisters();
 	process.restoreState();
 
@@ -72,4 +94,6 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+
+    private boolean started = false;
 }
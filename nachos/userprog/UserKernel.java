@@ -4,7 +4,12 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList; 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Iterator;   
 import java.util.HashMap; 
 
@@ -35,8 +40,46 @@ public class UserKernel extends ThreadedKernel {
 		 * Mohammadkian Maroofi 
 		 */
 		int numPhysPages = Machine.processor().getNumPhysPages(); 
-		for(int i = 0; i < numPhysPages; i++) { 
-			pageTable.add(i);
+		pageAllocator = new PageAllocator(numPhysPages);
+		pageReferences = new int[numPhysPages];
+
+		// physical memory starts out zeroed
+		for (int ppn = 0; ppn < numPhysPages; ppn++)
+			pageAllocator.markClean(ppn);
+
+		if (Config.getBoolean("UserKernel.zeroFreePages", true)) {
+			zeroNeeded = new Semaphore(0);
+
+			KThread zeroThread = new KThread(new Runnable() {
+				public void run() { zeroFreePages(); }
+			}).setName("page zeroing");
+
+			// a priority scheduler only runs the thread when nothing else
+			// is ready; otherwise it gets one page per turn
+			if (ThreadedKernel.scheduler instanceof PriorityScheduler) {
+				boolean intStatus = Machine.interrupt().disable();
+				ThreadedKernel.scheduler.setPriority(zeroThread,
+						PriorityScheduler.priorityMinimum);
+				Machine.interrupt().restore(intStatus);
+			}
+
+			zeroThread.fork();
+		}
+
+		maxCachedExecutables = Config.getInteger("UserKernel.execCacheSize", 4);
+
+		checkpointTicks = Config.getInteger("UserKernel.checkpointTicks", -1);
+		checkpointFile = Config.getString("UserKernel.checkpointFile",
+				"nachos.ckpt");
+		Lib.assertTrue(checkpointsSupported() ||
+				(checkpointTicks < 0 && Machine.getRestoreFileName() == null),
+				"checkpoints are not supported by " + getClass().getName());
+
+		int sampleTicks = Config.getInteger("Profiler.sampleTicks", 0);
+		boolean countBlocks = Config.getBoolean("Profiler.countBlocks", false);
+		if (sampleTicks > 0 || countBlocks) {
+			profiler = new Profiler(sampleTicks);
+			Machine.processor().setMonitor(profiler, sampleTicks, countBlocks);
 		}
 	}
 
@@ -58,7 +101,6 @@ public class UserKernel extends ThreadedKernel {
 	while (c != 'q');
 
 	System.out.println("");*/
-<<<<<<< HEAD
 		//UserProcess userProcess = new UserProcess();
 		//userProcess.handleSyscall(4, 0, 2, 2, 2);
 		//userProcess.handleSyscall(5, 0, 2, 2, 2);
@@ -95,6 +137,16 @@ public class UserKernel extends ThreadedKernel {
 
 		UserProcess process = ((UThread) KThread.currentThread()).process;
 		int cause = Machine.processor().readRegister(Processor.regCause);
+
+		// a syscall hasn't changed anything yet, so it's a safe point to
+		// save a checkpoint at
+		if (cause == Processor.exceptionSyscall && checkpointTicks >= 0
+				&& Machine.timer().getTime() >= checkpointTicks) {
+			checkpointTicks = -1;
+			if (!checkpoint(checkpointFile))
+				Lib.debug('a', "unable to write checkpoint " + checkpointFile);
+		}
+
 		process.handleException(cause);
 	}
 
@@ -108,6 +160,17 @@ public class UserKernel extends ThreadedKernel {
 	public void run() {
 		super.run();
 
+		String restoreFile = Machine.getRestoreFileName();
+		if (restoreFile != null) {
+			Lib.debug('a', "Resuming from checkpoint: " + restoreFile);
+			boolean intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(Machine.restoreCheckpoint(restoreFile, checkpointState),
+					"unable to restore checkpoint " + restoreFile);
+			Machine.interrupt().restore(intStatus);
+
+			KThread.currentThread().finish();
+		}
+
 		UserProcess process = UserProcess.newUserProcess();
 
 		String shellProgram = Machine.getShellProgramName();	
@@ -121,9 +184,107 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (profiler != null)
+			profiler.print();
+
 		super.terminate();
 	}
 
+	/**
+	 * Save the machine and every process to a checkpoint file, from which
+	 * a later run can resume with the <tt>-r</tt> switch. Besides the
+	 * machine state, a checkpoint holds the process table, each process's
+	 * page table and registers, and which physical pages are allocated.
+	 * Kernel threads other than those running user programs are not saved;
+	 * a resumed kernel starts its own.
+	 *
+	 * <p>
+	 * Checkpoints are taken automatically at the first system call made
+	 * after <tt>UserKernel.checkpointTicks</tt> ticks, if that key is set,
+	 * and written to <tt>UserKernel.checkpointFile</tt>.
+	 *
+	 * @param	fileName	the name of the checkpoint file, in the host
+	 *				file system.
+	 * @return	<tt>true</tt> if the checkpoint was written.
+	 */
+	public boolean checkpoint(String fileName) {
+		Lib.assertTrue(checkpointsSupported());
+
+		boolean intStatus = Machine.interrupt().disable();
+		boolean success = Machine.saveCheckpoint(fileName, checkpointState);
+		Machine.interrupt().restore(intStatus);
+		return success;
+	}
+
+	/**
+	 * Test whether this kernel can save and restore checkpoints.
+	 *
+	 * @return	<tt>true</tt> if <tt>checkpoint()</tt> is supported.
+	 */
+	protected boolean checkpointsSupported() {
+		return true;
+	}
+
+	private Checkpoint.Section checkpointState = new Checkpoint.Section() {
+		public void save(DataOutputStream out) throws IOException {
+			saveKernelState(out);
+		}
+
+		public void restore(DataInputStream in) throws IOException {
+			restoreKernelState(in);
+		}
+	};
+
+	private static void saveKernelState(DataOutputStream out) throws IOException {
+		out.writeInt(nextPid);
+
+		out.writeInt(pageReferences.length);
+		for (int ppn = 0; ppn < pageReferences.length; ppn++) {
+			out.writeInt(pageReferences[ppn]);
+			if (pageReferences[ppn] > 0)
+				out.writeInt(pageAllocator.getOwner(ppn));
+			else
+				out.writeBoolean(pageAllocator.isClean(ppn));
+		}
+
+		Integer[] pids = processMap.keySet().toArray(new Integer[0]);
+		Arrays.sort(pids);
+		out.writeInt(pids.length);
+		for (Integer pid : pids)
+			processMap.get(pid).saveCheckpoint(out);
+	}
+
+	private static void restoreKernelState(DataInputStream in) throws IOException {
+		int savedNextPid = in.readInt();
+
+		if (in.readInt() != pageReferences.length)
+			throw new IOException("physical memory size differs");
+		for (int ppn = 0; ppn < pageReferences.length; ppn++) {
+			pageReferences[ppn] = in.readInt();
+			if (pageReferences[ppn] > 0)
+				Lib.assertTrue(pageAllocator.allocateAt(ppn, in.readInt()));
+			else if (!in.readBoolean())
+				pageAllocator.markDirty(ppn);
+		}
+		if (zeroThreadWaiting) {
+			zeroThreadWaiting = false;
+			zeroNeeded.V();
+		}
+
+		// read every process before any of them can run
+		UserProcess[] processes = new UserProcess[in.readInt()];
+		for (int i = 0; i < processes.length; i++) {
+			processes[i] = UserProcess.newUserProcess();
+			processes[i].restoreCheckpoint(in);
+			registerProcess(processes[i].pid, processes[i]);
+		}
+
+		nextPid = savedNextPid;
+
+		for (UserProcess process : processes)
+			new UThread(process).setName(process.executableName).fork();
+	}
+
 
 
 	/**
@@ -131,36 +292,198 @@ public class UserKernel extends ThreadedKernel {
 	 */
 	/**
 	 * Return number of a free page.
-	 * If pageTable is empty, return -1 otherwise return free page number.
+	 * If there are no free pages, return -1 otherwise return free page
+	 * number. The page is charged to the current process.
 	 */
 	public static int getFreePage() {                    
-		int pageNumber = -1;                             
-		Machine.interrupt().disable();                             
-		if (pageTable.isEmpty() == false)                          
-			pageNumber = pageTable.removeFirst();         
-		Machine.interrupt().enable();                              
+		boolean intStatus = Machine.interrupt().disable();
+		int pageNumber = pageAllocator.allocate(currentOwner());
+		if (pageNumber != -1)
+			pageReferences[pageNumber] = 1;
+		Machine.interrupt().restore(intStatus);
 		return pageNumber;                               
 	}                                                    
 	/**
-	 * Add a free page into page linked list.
+	 * Return number of a free page, preferring the specified page if it is
+	 * free.
+	 *
+	 * @param	preferred	the page to use if possible, or -1.
+	 * @return	the page number, or -1 if there are no free pages.
+	 */
+	public static int getFreePage(int preferred) {
+		boolean intStatus = Machine.interrupt().disable();
+		int pageNumber = preferred;
+		if (!pageAllocator.allocateAt(preferred, currentOwner()))
+			pageNumber = pageAllocator.allocate(currentOwner());
+		if (pageNumber != -1)
+			pageReferences[pageNumber] = 1;
+		Machine.interrupt().restore(intStatus);
+		return pageNumber;
+	}
+	/**
+	 * Find an aligned block of free pages, without allocating it.
+	 *
+	 * @param	size	the number of pages in the block, a power of two.
+	 * @return	the first page of the block, or -1 if there is none.
+	 */
+	public static int findFreeBlock(int size) {
+		return pageAllocator.findFreeBlock(size);
+	}
+	/**
+	 * Return number of a zero-filled free page. Pages already cleared by
+	 * the page zeroing thread are used first; otherwise a dirty page is
+	 * cleared here. Returns -1 if there are no free pages.
+	 */
+	public static int getZeroedPage() {
+		boolean intStatus = Machine.interrupt().disable();
+		int pageNumber = pageAllocator.allocateZeroed(currentOwner());
+		if (pageNumber != -1) {
+			Machine.countKernelEvent(Stats.EventZeroedPageHit, 1);
+		}
+		else {
+			pageNumber = pageAllocator.allocate(currentOwner());
+			if (pageNumber != -1)
+				zeroPage(pageNumber);
+		}
+		if (pageNumber != -1)
+			pageReferences[pageNumber] = 1;
+		Machine.interrupt().restore(intStatus);
+		return pageNumber;
+	}
+	/**
+	 * Allocate several free pages at once, charged to the current process.
+	 *
+	 * @param	count	the number of pages to allocate.
+	 * @param	contiguous	<tt>true</tt> if the pages must be consecutive.
+	 * @return	the page numbers, in increasing order, or <tt>null</tt> if
+	 *		they can't all be allocated.
+	 */
+	public static int[] getFreePages(int count, boolean contiguous) {
+		boolean intStatus = Machine.interrupt().disable();
+		int[] pageNumbers = pageAllocator.allocate(count, contiguous,
+				currentOwner());
+		if (pageNumbers != null) {
+			for (int pageNumber : pageNumbers)
+				pageReferences[pageNumber] = 1;
+		}
+		Machine.interrupt().restore(intStatus);
+		return pageNumbers;
+	}
+	/**
+	 * Return the number of physical pages charged to a process, that is,
+	 * allocated while it was running and not yet freed.
+	 */
+	public static int getNumPagesCharged(int pid) {
+		return pageAllocator.getNumAllocated(pid);
+	}
+	private static int currentOwner() {
+		UserProcess process = currentProcess();
+		return (process == null) ? PageAllocator.kernelOwner : process.pid;
+	}
+	/**
+	 * Add a reference to an allocated page, so that it can be shared
+	 * between page tables.
+	 */
+	public static void referencePage(int pageNumber) {
+		boolean intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(pageReferences[pageNumber] > 0);
+		pageReferences[pageNumber]++;
+		Machine.interrupt().restore(intStatus);
+	}
+	/**
+	 * Drop a reference to an allocated page. The page goes back on the free
+	 * list when its last reference is dropped.
+	 */
+	public static void releasePage(int pageNumber) {
+		boolean intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(pageReferences[pageNumber] > 0);
+		if (--pageReferences[pageNumber] == 0)
+			addFreePage(pageNumber);
+		Machine.interrupt().restore(intStatus);
+	}
+	/**
+	 * Return the number of page tables referring to a page.
+	 */
+	public static int getPageReferences(int pageNumber) {
+		return pageReferences[pageNumber];
+	}
+	/**
+	 * Return the number of pages on the free list.
+	 */
+	public static int getNumFreePages() {
+		return pageAllocator.getNumFree();
+	}
+	/**
+	 * Return a page to the free page allocator.
 	 */
 	public static void addFreePage(int pageNumber) {     
 		Lib.assertTrue(pageNumber >= 0                    
 				&& pageNumber < Machine.processor().getNumPhysPages()); 
-		Machine.interrupt().disable();                              
-		pageTable.add(pageNumber);                                  
-		Machine.interrupt().enable();                               
+		boolean intStatus = Machine.interrupt().disable();
+		pageAllocator.free(pageNumber);                                  
+		if (zeroThreadWaiting) {
+			zeroThreadWaiting = false;
+			zeroNeeded.V();
+		}
+		Machine.interrupt().restore(intStatus);
 	}                                                              
+	/**
+	 * The body of the page zeroing thread. It clears freed pages one at a
+	 * time so that <tt>getZeroedPage()</tt> usually finds one already
+	 * cleared, and sleeps when every free page is clean. It yields after
+	 * every page, so under a round-robin scheduler it clears at most one
+	 * page each time it comes up in the ready queue; under a
+	 * <tt>PriorityScheduler</tt> it runs at the lowest priority. The thread
+	 * is started unless the <tt>nachos.conf</tt> key
+	 * <tt>UserKernel.zeroFreePages</tt> is false.
+	 */
+	private static void zeroFreePages() {
+		while (true) {
+			boolean intStatus = Machine.interrupt().disable();
+			int pageNumber = pageAllocator.findDirty();
+			if (pageNumber == -1) {
+				zeroThreadWaiting = true;
+				zeroNeeded.P();
+			}
+			else {
+				zeroPage(pageNumber);
+				pageAllocator.markClean(pageNumber);
+				Machine.countKernelEvent(Stats.EventPageZeroed, 1);
+			}
+			Machine.interrupt().restore(intStatus);
+
+			KThread.yield();
+		}
+	}
+	private static void zeroPage(int pageNumber) {
+		int pageSize = Processor.pageSize;
+		Machine.processor().fillMemory(pageNumber * pageSize, pageSize,
+				(byte) 0);
+	}
 	/**
 	 * return next Pid
 	 */
 	public static int getNextPid() {                               
 		int retval;                                                
-		Machine.interrupt().disable();                             
+		boolean intStatus = Machine.interrupt().disable();
 		retval = ++nextPid;                                        
-		Machine.interrupt().enabled();                             
-		return nextPid;                                            
+		Machine.interrupt().restore(intStatus);
+		return retval;
 	}                                                              
+	/**
+	 * Give back a process ID that was never registered, because the process
+	 * could not be created. Only the most recently allocated ID can be
+	 * reused; any other is simply left unused.
+	 *
+	 * @param	pid	the process ID returned by <tt>getNextPid()</tt>.
+	 */
+	public static void releasePid(int pid) {
+		boolean intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(!processMap.containsKey(pid));
+		if (pid == nextPid)
+			nextPid--;
+		Machine.interrupt().restore(intStatus);
+	}
 	/**
 	 * get process from process map by pid
 	 */
@@ -172,9 +495,9 @@ public class UserKernel extends ThreadedKernel {
 	 */
 	public static UserProcess registerProcess(int pid, UserProcess process) {  
 		UserProcess insertedProcess;                               
-		Machine.interrupt().disable();                             
+		boolean intStatus = Machine.interrupt().disable();
 		insertedProcess = processMap.put(pid, process);            
-		Machine.interrupt().enabled();                             
+		Machine.interrupt().restore(intStatus);
 		return insertedProcess;                                    
 	}                                                              
 	/**
@@ -182,12 +505,148 @@ public class UserKernel extends ThreadedKernel {
 	 */
 	public static UserProcess unregisterProcess(int pid) {         
 		UserProcess deletedProcess;                                
-		Machine.interrupt().disable();                             
+		boolean intStatus = Machine.interrupt().disable();
 		/* Remove value for key pid  */
 		deletedProcess = processMap.remove(pid);                   
-		Machine.interrupt().enabled();                             
+		Machine.interrupt().restore(intStatus);
 		return deletedProcess;                                     
 	}  
+	/**
+	 * return the number of registered processes
+	 */
+	public static int getNumProcesses() {
+		return processMap.size();
+	}
+	/**
+	 * Add a reference to a loaded executable. Processes created by fork()
+	 * share their parent's executable.
+	 */
+	public static void retainExecutable(Coff coff) {
+		boolean intStatus = Machine.interrupt().disable();
+		Integer count = executableReferences.get(coff);
+		executableReferences.put(coff, (count == null) ? 1 : count+1);
+		Machine.interrupt().restore(intStatus);
+	}
+	/**
+	 * Drop a reference to a loaded executable.
+	 *
+	 * @return	<tt>true</tt> if this was the last reference, and the
+	 *		executable should be closed.
+	 */
+	public static boolean releaseExecutable(Coff coff) {
+		boolean intStatus = Machine.interrupt().disable();
+		int count = executableReferences.get(coff) - 1;
+		if (count == 0)
+			executableReferences.remove(coff);
+		else
+			executableReferences.put(coff, count);
+		Machine.interrupt().restore(intStatus);
+		return count == 0;
+	}
+	/**
+	 * Open an executable for a new process. Parsed executables are kept in
+	 * a small cache, so running the same program again doesn't reopen and
+	 * reparse the file. The returned executable has been retained for the
+	 * caller, who must drop it with <tt>releaseExecutable()</tt>.
+	 *
+	 * @return	the executable, or <tt>null</tt> if it could not be
+	 *		opened.
+	 */
+	public static Coff openExecutable(String name) {
+		boolean intStatus = Machine.interrupt().disable();
+		CachedCoff image = executableCache.get(name);
+		if (image != null)
+			retainExecutable(image);
+		Machine.interrupt().restore(intStatus);
+
+		if (image != null) {
+			Lib.debug('a', "\tusing cached image of " + name);
+			return image;
+		}
+
+		OpenFile executable = fileSystem.open(name, false);
+		if (executable == null) {
+			Lib.debug('a', "\topen failed");
+			return null;
+		}
+
+		// symbols are only needed to print a profile
+		SymbolTable symbols = null;
+		if (profiler != null)
+			symbols = SymbolTable.read(executable);
+
+		try {
+			image = new CachedCoff(name, new Coff(executable), symbols);
+		}
+		catch (EOFException e) {
+			executable.close();
+			Lib.debug('a', "\tcoff load failed");
+			return null;
+		}
+
+		intStatus = Machine.interrupt().disable();
+
+		// one reference for the cache, one for the caller
+		retainExecutable(image);
+		retainExecutable(image);
+		uncacheExecutable(executableCache.put(name, image));
+
+		Iterator<CachedCoff> i = executableCache.values().iterator();
+		while (executableCache.size() > maxCachedExecutables) {
+			CachedCoff eldest = i.next();
+			i.remove();
+			uncacheExecutable(eldest);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return image;
+	}
+	/**
+	 * Forget everything cached about an executable, because the file has
+	 * been changed or removed. Processes already running it are not
+	 * affected.
+	 */
+	public static void invalidateExecutable(String name) {
+		boolean intStatus = Machine.interrupt().disable();
+		uncacheExecutable(executableCache.remove(name));
+		sharedText.remove(name);
+		Machine.interrupt().restore(intStatus);
+	}
+	/**
+	 * Drop the cache's reference to an executable image.
+	 */
+	private static void uncacheExecutable(CachedCoff image) {
+		if (image != null && releaseExecutable(image))
+			image.close();
+	}
+	/**
+	 * Return the shared read-only pages of an executable, and add the
+	 * calling process as a user of them. If no process is running the
+	 * executable, a new, empty entry is created for the caller to fill.
+	 *
+	 * @param	name	the name of the executable.
+	 * @param	numPages	the number of pages in its sections.
+	 */
+	public static SharedText getSharedText(String name, int numPages) {
+		boolean intStatus = Machine.interrupt().disable();
+		SharedText text = sharedText.get(name);
+		if (text == null || text.getNumPages() != numPages) {
+			text = new SharedText(name, numPages);
+			sharedText.put(name, text);
+		}
+		text.retain();
+		Machine.interrupt().restore(intStatus);
+		return text;
+	}
+	/**
+	 * Remove a shared text entry from the cache, if it is still there.
+	 */
+	public static void invalidateSharedText(SharedText text) {
+		boolean intStatus = Machine.interrupt().disable();
+		if (sharedText.get(text.getName()) == text)
+			sharedText.remove(text.getName());
+		Machine.interrupt().restore(intStatus);
+	}
 
 
 
@@ -201,8 +660,37 @@ public class UserKernel extends ThreadedKernel {
 	 * Mohammadkian Maroofi
 	 */
 
-	/** maintain a global linked list of free physical pages.   */
-	private static LinkedList<Integer> pageTable = new LinkedList<Integer>();  
+	/** Keeps track of the free physical pages.   */
+	private static PageAllocator pageAllocator;  
+
+	/** The number of page tables referring to each physical page. */
+	private static int[] pageReferences;
+	/** Wakes the page zeroing thread when a page is freed. */
+	private static Semaphore zeroNeeded;
+	private static boolean zeroThreadWaiting = false;
+
+	/** The number of processes sharing each loaded executable. */
+	private static HashMap<Coff, Integer>
+	executableReferences = new HashMap<Coff, Integer>();
+
+	/** Recently used executables, least recently used first. */
+	private static LinkedHashMap<String, CachedCoff>
+	executableCache = new LinkedHashMap<String, CachedCoff>(16, 0.75f, true);
+
+	/** The most executables to keep open in <tt>executableCache</tt>. */
+	private static int maxCachedExecutables;
+
+	/** The time after which to save a checkpoint, or -1 for never. */
+	private static int checkpointTicks;
+	/** The file to save the automatic checkpoint to. */
+	private static String checkpointFile;
+
+	/** Profiles user programs, if profiling is enabled. */
+	private static Profiler profiler = null;
+
+	/** The read-only pages of running executables, by executable name. */
+	private static HashMap<String, SharedText>
+	sharedText = new HashMap<String, SharedText>();
 
 	/** Maintain a static counter which indicates the next process ID
 	 * to assign, assume that the process ID counter will not overflow.
@@ -215,76 +703,4 @@ public class UserKernel extends ThreadedKernel {
 	private static HashMap<Integer, UserProcess>              
 	processMap = new HashMap<Integer, UserProcess>(); 
 
-=======
-	//UserProcess userProcess = new UserProcess();
-	//userProcess.handleSyscall(4, 0, 2, 2, 2);
-	//userProcess.handleSyscall(5, 0, 2, 2, 2);
-	//userProcess.handleSyscall(6, 0, 1, 2, 0);
-	
-    }
-
-    /**
-     * Returns the current process.
-     *
-     * @return	the current process, or <tt>null</tt> if no process is current.
-     */
-    public static UserProcess currentProcess() {
-	if (!(KThread.currentThread() instanceof UThread))
-	    return null;
-	
-	return ((UThread) KThread.currentThread()).process;
-    }
-
-    /**
-     * The exception handler. This handler is called by the processor whenever
-     * a user instruction causes a processor exception.
-     *
-     * <p>
-     * When the exception handler is invoked, interrupts are enabled, and the
-     * processor's cause register contains an integer identifying the cause of
-     * the exception (see the <tt>exceptionZZZ</tt> constants in the
-     * <tt>Processor</tt> class). If the exception involves a bad virtual
-     * address (e.g. page fault, TLB miss, read-only, bus error, or address
-     * error), the processor's BadVAddr register identifies the virtual address
-     * that caused the exception.
-     */
-    public void exceptionHandler() {
-	Lib.assertTrue(KThread.currentThread() instanceof UThread);
-
-	UserProcess process = ((UThread) KThread.currentThread()).process;
-	int cause = Machine.processor().readRegister(Processor.regCause);
-	process.handleException(cause);
-    }
-
-    /**
-     * Start running user programs, by creating a process and running a shell
-     * program in it. The name of the shell program it must run is returned by
-     * <tt>Machine.getShellProgramName()</tt>.
-     *
-     * @see	nachos.machine.Machine#getShellProgramName
-     */
-    public void run() {
-	super.run();
-
-	UserProcess process = UserProcess.newUserProcess();
-	
-	String shellProgram = Machine.getShellProgramName();	
-	Lib.assertTrue(process.execute(shellProgram, new String[] { }));
-
-	KThread.currentThread().finish();
-    }
-
-    /**
-     * Terminate this kernel. Never returns.
-     */
-    public void terminate() {
-	super.terminate();
-    }
-
-    /** Globally accessible reference to the synchronized console. */
-    public static SynchConsole console;
-
-    // dummy variables to make javac smarter
-    private static Coff dummy1 = null;
->>>>>>> 75a82549501636e371d3ebcf1a7639ae806d327a
 }
@@ -4,7 +4,12 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -19,16 +24,15 @@ import java.io.EOFException;
  * @see	nachos.network.NetProcess
  */
 public class UserProcess {
-<<<<<<< HEAD
 	/**
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
 
 		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
+		pageTable = new PageTable();
 		for (int i=0; i<numPhysPages; i++)
-			pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+			pageTable.set(i, new TranslationEntry(i,i, true,false,false,false));
 
 		//Borys Ancihin//
 		initializeListOfFileDescriptors();
@@ -37,97 +41,7 @@ public class UserProcess {
 		fileDescriptors[fdStandardOutput].file = UserKernel.console.openForWriting();
 		//Borys Anichin//
 
-=======
-    /**
-     * Allocate a new process.
-     */
-    public UserProcess() {
-    	
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
-	
-	//Borys Ancihin//
-	initializeListOfFileDescriptors();
-	
-	fileDescriptors[fdStandardInput].file = UserKernel.console.openForReading();
-	fileDescriptors[fdStandardOutput].file = UserKernel.console.openForWriting();
-	//Borys Anichin//
-	
-    }
-    
-    /**
-     * Allocate and return a new process of the correct class. The class name
-     * is specified by the <tt>nachos.conf</tt> key
-     * <tt>Kernel.processClassName</tt>.
-     *
-     * @return	a new process of the correct class.
-     */
-    public static UserProcess newUserProcess() {
-	return (UserProcess)Lib.constructObject(Machine.getProcessClassName());
-    }
-
-    /**
-     * Execute the specified program with the specified arguments. Attempts to
-     * load the program, and then forks a thread to run it.
-     *
-     * @param	name	the name of the file containing the executable.
-     * @param	args	the arguments to pass to the executable.
-     * @return	<tt>true</tt> if the program was successfully executed.
-     */
-    public boolean execute(String name, String[] args) {
-	if (!load(name, args))
-	    return false;
-	
-	new UThread(this).setName(name).fork();
-
-	return true;
-    }
-
-    /**
-     * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
-     */
-    public void saveState() {
-    }
-
-    /**
-     * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
-     */
-    public void restoreState() {
-	Machine.processor().setPageTable(pageTable);
-    }
-
-    /**
-     * Read a null-terminated string from this process's virtual memory. Read
-     * at most <tt>maxLength + 1</tt> bytes from the specified address, search
-     * for the null terminator, and convert it to a <tt>java.lang.String</tt>,
-     * without including the null terminator. If no null terminator is found,
-     * returns <tt>null</tt>.
-     *
-     * @param	vaddr	the starting virtual address of the null-terminated
-     *			string.
-     * @param	maxLength	the maximum number of characters in the string,
-     *				not including the null terminator.
-     * @return	the string read, or <tt>null</tt> if no null terminator was
-     *		found.
-     */
-    public String readVirtualMemoryString(int vaddr, int maxLength) {
-	Lib.assertTrue(maxLength >= 0);
-
-	byte[] bytes = new byte[maxLength+1];
-
-	int bytesRead = readVirtualMemory(vaddr, bytes);
-	System.out.println("Number of bytes: " + bytesRead);
-
-	for (int length = 0; length < bytesRead; length++) {
-	    if (bytes[length] == 0) {
-	    	System.out.println("bytes[length] == 0");
-	    	return new String(bytes, 0, length);
-	    }
->>>>>>> 75a82549501636e371d3ebcf1a7639ae806d327a
+		pid = UserKernel.getNextPid();
 	}
 
 	/**
@@ -153,6 +67,8 @@ public class UserProcess {
 		if (!load(name, args))
 			return false;
 
+		UserKernel.registerProcess(pid, this);
+
 		new UThread(this).setName(name).fork();
 
 		return true;
@@ -193,7 +109,6 @@ public class UserProcess {
 		byte[] bytes = new byte[maxLength+1];
 
 		int bytesRead = readVirtualMemory(vaddr, bytes);
-		System.out.println("Number of bytes: " + bytesRead);
 
 		for (int length = 0; length < bytesRead; length++) {
 			if (bytes[length] == 0) {
@@ -234,35 +149,24 @@ public class UserProcess {
 			int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-		Processor processor = Machine.processor(); /* Mohammadkian Maroofi */
-
-
-		byte[] memory = Machine.processor().getMemory();
-
-		/**
-		 * @author Mohammadkian Maroofi
-		 */
-		// calculate virtual page number from the virtual address     
-		int vpn = processor.pageFromAddress(vaddr);                    
-		int addressOffset = processor.offsetFromAddress(vaddr);        
-		TranslationEntry entry = null;                                 
-		entry = pageTable[vpn];                                        
-		entry.used = true;                                             
-		int ppn = entry.ppn;                            
-		int paddr = (ppn*pageSize) + addressOffset;     
-		// check if physical page number is out of range
-		if (ppn < 0 || ppn >= processor.getNumPhysPages())  {                  
-			Lib.debug(dbgProcess,                                               
-					"\t\t UserProcess.readVirtualMemory(): bad ppn "+ppn);     
-			return 0;                                                          
-		}                                                                      
-
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
+		Processor processor = Machine.processor();
 
-		int amount = Math.min(length, memory.length-vaddr);
-		System.arraycopy(memory, vaddr, data, offset, amount);
+		// copy page by page, stopping at the first page that can't be used
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr+amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+
+			TranslationEntry entry = pinResidentPage(vpn, false);
+			if (entry == null)
+				break;
+
+			int count = Math.min(length-amount, pageSize-pageOffset);
+			processor.readMemory(entry.ppn*pageSize + pageOffset,
+					data, offset+amount, count);
+			unpinPage(entry);
+			amount += count;
+		}
 
 		return amount;
 	}
@@ -298,40 +202,245 @@ public class UserProcess {
 			int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-		Processor processor = Machine.processor();            /* Mohammadkian Maroofi */
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 
-		/**
-		 * @author Mohammadkian Maroofi
-		 */
-		// calculate virtual page number from the virtual address
-		int vpn = processor.pageFromAddress(vaddr);                            
-		int addressOffset = processor.offsetFromAddress(vaddr);    
-		TranslationEntry entry = null;                           
-		entry = pageTable[vpn];                                  
-		entry.used = true;                                       
-		entry.dirty = true;                                      
-		int ppn = entry.ppn;                                     
-		int paddr = (ppn*pageSize) + addressOffset;               
-		if (entry.readOnly) {                                     
-			Lib.debug(dbgProcess,                                 
-					"\t\t [UserProcess.writeVirtualMemory]: write read-only page "+ppn); 
-			return 0;                                             
-		}                                                           
-		// check if physical page number is out of range
-		if (ppn < 0 || ppn >= processor.getNumPhysPages())  {    
-			Lib.debug(dbgProcess, "\t\t [UserProcess.writeVirtualMemory]: bad ppn "+ppn); 
-			return 0;                              
-		}                                                          
-
-		int amount = Math.min(length, memory.length-vaddr);
-		Lib.debug(dbgProcess, 
-				"[UserProcess.writeVirtualMemory]: arrary copy amount: "+amount);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+		// copy page by page, stopping at the first page that can't be used
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr+amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+
+			TranslationEntry entry = pinResidentPage(vpn, true);
+			if (entry == null) {
+				Lib.debug(dbgProcess,
+						"\t\t[UserProcess.writeVirtualMemory]: bad page " + vpn);
+				break;
+			}
+
+			int count = Math.min(length-amount, pageSize-pageOffset);
+			processor.writeMemory(entry.ppn*pageSize + pageOffset,
+					data, offset+amount, count);
+			unpinPage(entry);
+			amount += count;
+		}
 
 		return amount;
 	}
 
+	/**
+	 * Return the translation entry for the specified virtual page, making the
+	 * page resident first if it is not. Marks the page used, and dirty if
+	 * <i>writing</i> is set, as the processor would for a user access.
+	 *
+	 * @param	vpn	the virtual page to access.
+	 * @param	writing	<tt>true</tt> if the page is about to be written.
+	 * @return	the translation entry for the page, or <tt>null</tt> if the
+	 *		page is not part of this address space or can't be written.
+	 */
+	protected TranslationEntry getResidentPage(int vpn, boolean writing) {
+		if (pageTable.get(vpn) == null)
+			return null;
+
+		if (!pageTable.get(vpn).valid && !handlePageFault(vpn))
+			return null;
+
+		if (writing && pageTable.get(vpn).readOnly && !handleCopyOnWrite(vpn))
+			return null;
+
+		TranslationEntry entry = pageTable.get(vpn);
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		return entry;
+	}
+
+	/**
+	 * Return the translation entry for the specified virtual page, as
+	 * <tt>getResidentPage()</tt> does, and keep the page in the same
+	 * physical page until <tt>unpinPage()</tt> is called. Pages of this
+	 * class are never moved, so this is the same as
+	 * <tt>getResidentPage()</tt>.
+	 *
+	 * @param	vpn	the virtual page to access.
+	 * @param	writing	<tt>true</tt> if the page is about to be written.
+	 * @return	the translation entry for the page, or <tt>null</tt> if the
+	 *		page is not part of this address space or can't be written.
+	 */
+	protected TranslationEntry pinResidentPage(int vpn, boolean writing) {
+		return getResidentPage(vpn, writing);
+	}
+
+	/**
+	 * Allow a page pinned by <tt>pinResidentPage()</tt> to be moved again.
+	 *
+	 * @param	entry	the translation entry returned by
+	 *			<tt>pinResidentPage()</tt>.
+	 */
+	protected void unpinPage(TranslationEntry entry) {
+	}
+
+	/**
+	 * Make the specified non-resident virtual page resident. Only pages of
+	 * memory-mapped regions are loaded on demand by this class; everything
+	 * else is loaded eagerly by <tt>loadSections()</tt>.
+	 *
+	 * @param	vpn	the virtual page that faulted.
+	 * @return	<tt>true</tt> if the page is now valid.
+	 */
+	protected boolean handlePageFault(int vpn) {
+		MemoryMap map = findMemoryMap(vpn);
+		if (map == null)
+			return false;
+
+		int ppn = allocatePage();
+		if (ppn == -1) {
+			Lib.debug(dbgProcess, "\tno free page for mapped page " + vpn);
+			return false;
+		}
+
+		map.loadPage(vpn, ppn);
+		pageTable.set(vpn, new TranslationEntry(vpn, ppn, true, false, false, false));
+		pageLoaded(pageTable.get(vpn));
+		return true;
+	}
+
+	/**
+	 * Give this process a private copy of a copy-on-write page it is about
+	 * to write. If no other page table still refers to the physical page,
+	 * the page is simply made writable again.
+	 *
+	 * @param	vpn	the virtual page being written.
+	 * @return	<tt>true</tt> if the page is now writable, or
+	 *		<tt>false</tt> if it is not a copy-on-write page.
+	 */
+	protected boolean handleCopyOnWrite(int vpn) {
+		if (!copyOnWrite.get(vpn))
+			return false;
+
+		TranslationEntry entry = pageTable.get(vpn);
+		if (UserKernel.getPageReferences(entry.ppn) > 1) {
+			int ppn = allocatePage();
+			if (ppn == -1) {
+				Lib.debug(dbgProcess, "\tno free page to copy vpn " + vpn);
+				return false;
+			}
+
+			Machine.processor().copyMemory(entry.ppn*pageSize,
+					ppn*pageSize, pageSize);
+
+			pageUnloaded(entry);
+			UserKernel.releasePage(entry.ppn);
+			entry.ppn = ppn;
+			pageLoaded(entry);
+		}
+
+		entry.readOnly = false;
+		copyOnWrite.clear(vpn);
+		return true;
+	}
+
+	/**
+	 * Share this process's address space with a newly forked child. Writable
+	 * resident pages become read-only and copy-on-write in both page tables;
+	 * pages of memory-mapped regions are written back and left for the child
+	 * to fault in from its own copy of the map.
+	 *
+	 * @param	child	the process being created by <tt>fork()</tt>.
+	 * @return	<tt>true</tt> if the address space was shared successfully.
+	 */
+	protected boolean forkAddressSpace(UserProcess child) {
+		flushTranslations();
+
+		for (MemoryMap map : memoryMaps) {
+			MemoryMap childMap = map.duplicate();
+			if (childMap == null) {
+				for (MemoryMap m : child.memoryMaps)
+					m.close();
+				return false;
+			}
+			child.memoryMaps.add(childMap);
+
+			for (int i=0; i<map.getNumPages(); i++) {
+				TranslationEntry entry = pageTable.get(map.getFirstVPN() + i);
+				if (entry.valid && entry.dirty && map.writeBack(entry.vpn, entry.ppn))
+					entry.dirty = false;
+			}
+		}
+
+		child.pageTable = new PageTable();
+		for (int vpn=pageTable.nextVPN(0); vpn != -1;
+				vpn=pageTable.nextVPN(vpn+1)) {
+			TranslationEntry entry = pageTable.get(vpn);
+
+			if (!entry.valid || findMemoryMap(vpn) != null) {
+				child.pageTable.set(vpn,
+					new TranslationEntry(vpn, -1, false, false, false, false));
+				continue;
+			}
+
+			if (!entry.readOnly) {
+				entry.readOnly = true;
+				copyOnWrite.set(vpn);
+			}
+			if (copyOnWrite.get(vpn))
+				child.copyOnWrite.set(vpn);
+
+			UserKernel.referencePage(entry.ppn);
+			child.pageTable.set(vpn, new TranslationEntry(entry));
+			child.pageLoaded(child.pageTable.get(vpn));
+		}
+
+		child.numPages = numPages;
+		child.coff = coff;
+		child.executableName = executableName;
+		UserKernel.retainExecutable(coff);
+
+		child.sharedText = sharedText;
+		if (sharedText != null)
+			sharedText.retain();
+
+		return true;
+	}
+
+	/**
+	 * Allocate a physical page for this process. The page starts out with
+	 * one reference, held by the caller.
+	 *
+	 * @return	the physical page number, or -1 if there is no free page.
+	 */
+	protected int allocatePage() {
+		return UserKernel.getFreePage();
+	}
+
+	/**
+	 * Called after a virtual page of this process has been given a physical
+	 * page. Does nothing here.
+	 *
+	 * @param	entry	the translation entry of the page, now valid.
+	 */
+	protected void pageLoaded(TranslationEntry entry) {
+	}
+
+	/**
+	 * Called before a virtual page of this process gives up its physical
+	 * page. Does nothing here.
+	 *
+	 * @param	entry	the translation entry of the page, still valid.
+	 */
+	protected void pageUnloaded(TranslationEntry entry) {
+	}
+
+	/**
+	 * Bring the used and dirty bits in the page table up to date and drop
+	 * any cached copies of its entries. Called before pages are removed from
+	 * this process's address space. The processor uses the page table
+	 * directly when it has no TLB, so there is nothing to do here.
+	 */
+	protected void flushTranslations() {
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -345,27 +454,17 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
+		coff = UserKernel.openExecutable(name);
+		if (coff == null)
 			return false;
-		}
+		executableName = name;
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s=0; s<coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 			if (section.getFirstVPN() != numPages) {
-				coff.close();
+				closeExecutable();
 				Lib.debug(dbgProcess, "\tfragmented executable");
 				return false;
 			}
@@ -381,7 +480,7 @@ public class UserProcess {
 			argsSize += 4 + argv[i].length + 1;
 		}
 		if (argsSize > pageSize) {
-			coff.close();
+			closeExecutable();
 			Lib.debug(dbgProcess, "\targuments too long");
 			return false;
 		}
@@ -399,10 +498,9 @@ public class UserProcess {
 		/**
 		 * Mohammadkian Maroofi
 		 */
-		pageTable = new TranslationEntry[numPages];                                    
+		pageTable = new PageTable();
 		for (int i = 0; i < numPages; i++) {                                          
-			int ppn = UserKernel.getFreePage();                                   
-			pageTable[i] =  new TranslationEntry(i, ppn, true, false, false, false);
+			pageTable.set(i, new TranslationEntry(i, -1, false, false, false, false));
 		}      
 
 		if (!loadSections())
@@ -410,21 +508,21 @@ public class UserProcess {
 
 		// store arguments in last page
 		int entryOffset = (numPages-1)*pageSize;
-		int stringOffset = entryOffset + args.length*4;
 
 		this.argc = args.length;
 		this.argv = entryOffset;
 
+		// build the pointers and strings in one buffer, and copy it in
+		// with a single write
+		byte[] argsPage = new byte[argsSize];
+		int pointer = 0, string = args.length*4;
 		for (int i=0; i<argv.length; i++) {
-			byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-			Lib.assertTrue(writeVirtualMemory(entryOffset,stringOffsetBytes) == 4);
-			entryOffset += 4;
-			Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-					argv[i].length);
-			stringOffset += argv[i].length;
-			Lib.assertTrue(writeVirtualMemory(stringOffset,new byte[] { 0 }) == 1);
-			stringOffset += 1;
+			Lib.bytesFromInt(argsPage, pointer, entryOffset + string);
+			pointer += 4;
+			System.arraycopy(argv[i], 0, argsPage, string, argv[i].length);
+			string += argv[i].length + 1;
 		}
+		Lib.assertTrue(writeVirtualMemory(entryOffset, argsPage) == argsSize);
 
 		return true;
 	}
@@ -433,16 +531,22 @@ public class UserProcess {
 	 * Allocates memory for this process, and loads the COFF sections into
 	 * memory. If this returns successfully, the process will definitely be
 	 * run (this is the last step in process initialization that can fail).
+	 * Read-only sections already loaded by another process running the same
+	 * executable are mapped from the kernel's shared text cache instead of
+	 * being loaded again.
 	 *
 	 * @return	<tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
 		if (numPages > Machine.processor().getNumPhysPages()) {
-		    coff.close();
+		    closeExecutable();
 		    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 		    return false;
 		}
 
+		// share the text of any other process running this executable
+		sharedText = UserKernel.getSharedText(executableName, numPages-stackPages-1);
+
 		/**
 		 * Mohammadkian Maroofi
 		 */
@@ -454,27 +558,112 @@ public class UserProcess {
 	                + " section (" + section.getLength() + " pages)");
 
 		    for (int i=0; i<section.getLength(); i++) {
-			int vpn = section.getFirstVPN()+i;
-	         
-	        // translate virtual page number from physical page number
-	        TranslationEntry entry = pageTable[vpn];                      
-	        entry.readOnly = section.isReadOnly();                        
-	        int ppn = entry.ppn;                                          
-	        section.loadPage(i, ppn);                                                 
+		    	if (!loadSectionPage(section, i))
+		    		return unloadAfterFailure();
 		    }
 		}
+
+		// the stack and arguments start out zeroed
+		for (int vpn=numPages-stackPages-1; vpn<numPages; vpn++) {
+			if (!loadZeroPage(vpn))
+				return unloadAfterFailure();
+		}
 		
 		return true;
 	}
 
+	/**
+	 * Load a page of a COFF section into a new physical page. Read-only pages
+	 * that another process running the same executable has already loaded
+	 * are mapped from the shared text cache instead.
+	 *
+	 * @param	section	the section containing the page.
+	 * @param	spn	the page number within the section.
+	 * @return	<tt>true</tt> if the page is now valid, or <tt>false</tt> if
+	 *		there is no free physical page.
+	 */
+	protected boolean loadSectionPage(CoffSection section, int spn) {
+		int vpn = section.getFirstVPN()+spn;
+
+		// translate virtual page number from physical page number
+		TranslationEntry entry = pageTable.get(vpn);
+		entry.readOnly = section.isReadOnly();
+
+		if (entry.readOnly && sharedText.getPage(vpn) != -1) {
+			entry.ppn = sharedText.getPage(vpn);
+			UserKernel.referencePage(entry.ppn);
+			entry.valid = true;
+			pageLoaded(entry);
+			return true;
+		}
+
+		int ppn = allocatePage();
+		if (ppn == -1)
+			return false;
+
+		section.loadPage(spn, ppn);
+		if (entry.readOnly)
+			sharedText.addPage(vpn, ppn);
+
+		entry.ppn = ppn;
+		entry.valid = true;
+		pageLoaded(entry);
+		return true;
+	}
+
+	/**
+	 * Give a stack or argument page a new, zero-filled physical page.
+	 *
+	 * @param	vpn	the virtual page to fill.
+	 * @return	<tt>true</tt> if the page is now valid, or <tt>false</tt> if
+	 *		there is no free physical page.
+	 */
+	protected boolean loadZeroPage(int vpn) {
+		int ppn = UserKernel.getZeroedPage();
+		if (ppn == -1)
+			return false;
+
+		TranslationEntry entry = pageTable.get(vpn);
+		entry.ppn = ppn;
+		entry.valid = true;
+		pageLoaded(entry);
+		return true;
+	}
+
+	private boolean unloadAfterFailure() {
+		Lib.debug(dbgProcess, "\tinsufficient physical memory");
+		unloadSections();
+		closeExecutable();
+		return false;
+	}
+
+	/**
+	 * Drop this process's reference to its executable, closing it if no
+	 * other process or cache is still using it.
+	 */
+	protected void closeExecutable() {
+		if (UserKernel.releaseExecutable(coff))
+			coff.close();
+	}
+
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		if (sharedText != null) {
+			sharedText.release();
+			sharedText = null;
+		}
+
         /* back out physical pages and make page entry invalid */
         for (int i = 0; i < numPages; i++) {                           
-            UserKernel.addFreePage(pageTable[i].ppn);                 
-            pageTable[i].valid = false;                              
+            TranslationEntry entry = pageTable.get(i);
+            if (entry != null && entry.valid) {
+                pageUnloaded(entry);
+                UserKernel.releasePage(entry.ppn);
+            }
+            if (entry != null)
+                entry.valid = false;                              
         }     
 	}    
 
@@ -488,6 +677,13 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked child resumes where its parent made the fork() call
+		if (forkRegisters != null) {
+			for (int i=0; i<processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i=0; i<processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -500,14 +696,147 @@ public class UserProcess {
 		processor.writeRegister(Processor.regA0, argc);
 		processor.writeRegister(Processor.regA1, argv);
 	}
-<<<<<<< HEAD
 
 	/**
-	 * Handle the halt() system call. 
+	 * Write the state of this process to a checkpoint: its program and
+	 * arguments, its page table, its memory-mapped regions and open files,
+	 * and its thread's user registers. The physical pages themselves are
+	 * saved with the rest of memory by the machine.
+	 *
+	 * <p>
+	 * A thread that is blocked in a system call saved its registers at the
+	 * syscall instruction, so the call is made again from the start when the
+	 * checkpoint is restored.
+	 *
+	 * @param	out	the stream to write to.
+	 */
+	protected void saveCheckpoint(DataOutputStream out) throws IOException {
+		flushTranslations();
+
+		out.writeInt(pid);
+		out.writeUTF(executableName);
+		out.writeInt(numPages);
+		out.writeInt(initialPC);
+		out.writeInt(initialSP);
+		out.writeInt(argc);
+		out.writeInt(argv);
+
+		int[] registers = (thread == null) ? null : thread.getUserRegisters();
+		if (registers == null)
+			registers = forkRegisters;
+		out.writeBoolean(registers != null);
+		if (registers != null) {
+			for (int i=0; i<Processor.numUserRegisters; i++)
+				out.writeInt(registers[i]);
+		}
+
+		out.writeInt(pageTable.getNumPages());
+		for (int vpn=pageTable.nextVPN(0); vpn != -1;
+				vpn=pageTable.nextVPN(vpn+1)) {
+			TranslationEntry entry = pageTable.get(vpn);
+			out.writeInt(vpn);
+			out.writeInt(entry.ppn);
+			out.writeBoolean(entry.valid);
+			out.writeBoolean(entry.readOnly);
+			out.writeBoolean(entry.dirty);
+			out.writeBoolean(copyOnWrite.get(vpn));
+		}
+
+		out.writeInt(memoryMaps.size());
+		for (MemoryMap map : memoryMaps) {
+			out.writeUTF(map.getFileName());
+			out.writeInt(map.getFileOffset());
+			out.writeInt(map.getLength());
+			out.writeInt(map.getFirstVPN());
+		}
+
+		// the console descriptors are opened by the constructor
+		for (int i=0; i<maxOpenedFiles; i++) {
+			FileDescriptor fileDescriptor = fileDescriptors[i];
+			if (fileDescriptor.file == null || fileDescriptor.fileName.equals(""))
+				continue;
+
+			out.writeInt(i);
+			out.writeUTF(fileDescriptor.fileName);
+			out.writeInt(fileDescriptor.file.tell());
+		}
+		out.writeInt(-1);
+	}
+
+	/**
+	 * Read back the state written by <tt>saveCheckpoint()</tt>. The physical
+	 * pages named in the page table must already hold their saved contents
+	 * and be allocated. Read-only pages are no longer shared through the
+	 * shared text cache, though they stay shared with the other processes
+	 * that were sharing them.
+	 *
+	 * @param	in	the stream to read from.
+	 */
+	protected void restoreCheckpoint(DataInputStream in) throws IOException {
+		pid = in.readInt();
+		executableName = in.readUTF();
+		numPages = in.readInt();
+		initialPC = in.readInt();
+		initialSP = in.readInt();
+		argc = in.readInt();
+		argv = in.readInt();
+
+		if (in.readBoolean()) {
+			forkRegisters = new int[Processor.numUserRegisters];
+			for (int i=0; i<Processor.numUserRegisters; i++)
+				forkRegisters[i] = in.readInt();
+		}
+
+		coff = UserKernel.openExecutable(executableName);
+		if (coff == null)
+			throw new IOException("unable to open " + executableName);
+
+		pageTable = new PageTable();
+		int count = in.readInt();
+		for (int i=0; i<count; i++) {
+			int vpn = in.readInt();
+			TranslationEntry entry = new TranslationEntry(vpn, in.readInt(),
+					in.readBoolean(), in.readBoolean(), false, false);
+			entry.dirty = in.readBoolean();
+			if (in.readBoolean())
+				copyOnWrite.set(vpn);
+
+			pageTable.set(vpn, entry);
+			if (entry.valid)
+				pageLoaded(entry);
+		}
+
+		count = in.readInt();
+		for (int i=0; i<count; i++) {
+			String name = in.readUTF();
+			int fileOffset = in.readInt(), length = in.readInt();
+			int firstVPN = in.readInt();
+
+			OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+			if (file == null)
+				throw new IOException("unable to open " + name);
+			memoryMaps.add(new MemoryMap(file, fileOffset, length, firstVPN));
+		}
+
+		for (int i=in.readInt(); i != -1; i=in.readInt()) {
+			String name = in.readUTF();
+			int position = in.readInt();
+
+			OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+			if (file == null)
+				throw new IOException("unable to open " + name);
+			file.seek(position);
+			fileDescriptors[i].file = file;
+			fileDescriptors[i].fileName = name;
+		}
+	}
+
+	/**
+	 * Handle the halt() system call. The kernel is terminated, rather than
+	 * the machine halted directly, so that it can clean up after itself.
 	 */
 	private int handleHalt() {
-		System.out.println("in handleHalt()");
-		Machine.halt();
+		Kernel.kernel.terminate();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
 		return 0;
@@ -515,14 +844,14 @@ public class UserProcess {
 
 	//*Borys Anichin*//
 	private int handleCreate(int address) {
-		System.out.println("in handleCreatet()");                    
 		String fileName = readVirtualMemoryString(address, maxStringLength);
 
-		OpenFile file  = ThreadedKernel.fileSystem.open("new", true);
+		OpenFile file  = ThreadedKernel.fileSystem.open(fileName, true);
 
 		if (file == null) {
 			return -1;
 		}
+		UserKernel.invalidateExecutable(fileName);
 
 		int fileDescriptorId = getFileDescriptor();
 		if (fileDescriptorId < 0) {
@@ -532,7 +861,6 @@ public class UserProcess {
 		fileDescriptors[fileDescriptorId].fileName = fileName;
 		fileDescriptors[fileDescriptorId].file = file;
 
-		System.out.println("File Created");        
 		return fileDescriptorId;
 	}
 	//*Borys Anichin*//
@@ -540,11 +868,9 @@ public class UserProcess {
 	//*Borys Anichin*//
 	private int handleOpen(int address) {
 
-		System.out.println("in handleOpen()");
-
 		String fileName = readVirtualMemoryString(address, maxStringLength);
 
-		OpenFile file  = ThreadedKernel.fileSystem.open("fileName", false);
+		OpenFile file  = ThreadedKernel.fileSystem.open(fileName, false);
 
 		if (file == null) {
 			return -1;
@@ -559,7 +885,6 @@ public class UserProcess {
 		fileDescriptors[fileDescriptorId].fileName = fileName;
 		fileDescriptors[fileDescriptorId].file = file;
 
-		System.out.println("File Opened.");
 		return fileDescriptorId;
 	}
 	//*Borys Anichin*//
@@ -568,7 +893,9 @@ public class UserProcess {
 	private int handleRead(int fileDescriptorId, int address, int numberOfBytesRequested) {
 
 		if (fileDescriptorId < 0 || fileDescriptorId >= maxOpenedFiles
-				|| fileDescriptors[fileDescriptorId].file == null){
+				|| fileDescriptors[fileDescriptorId] == null
+				|| fileDescriptors[fileDescriptorId].file == null
+				|| numberOfBytesRequested < 0){
 			return -1;
 		}
 
@@ -595,7 +922,9 @@ public class UserProcess {
 	private int handleWrite(int fileDescriptorId, int address, int bufferSize) {
 
 		if (fileDescriptorId < 0 || fileDescriptorId >= maxOpenedFiles
-				|| fileDescriptors[fileDescriptorId].file == null) {
+				|| fileDescriptors[fileDescriptorId] == null
+				|| fileDescriptors[fileDescriptorId].file == null
+				|| bufferSize < 0) {
 			return -1;
 		}
 
@@ -606,6 +935,12 @@ public class UserProcess {
 		int numberOfBytesRead = readVirtualMemory(address, buffer);
 
 
+		// any cached image of the file is stale from the first write on
+		if (!fileDescriptor.written && !fileDescriptor.fileName.equals("")) {
+			UserKernel.invalidateExecutable(fileDescriptor.fileName);
+			fileDescriptor.written = true;
+		}
+
 		int numberOfBytesWritten = fileDescriptor.file.write(buffer, 0, numberOfBytesRead);
 
 		if (numberOfBytesWritten < 0) {
@@ -625,9 +960,14 @@ public class UserProcess {
 
 		FileDescriptor fileDescriptor = fileDescriptors[fileDescriptorId];
 
+		// in case the file was executed, and cached, while open for writing
+		if (fileDescriptor.written)
+			UserKernel.invalidateExecutable(fileDescriptor.fileName);
+
 		fileDescriptor.file.close();
 		fileDescriptor.file = null;
 		fileDescriptor.fileName = "";
+		fileDescriptor.written = false;
 
 		return 0;
 	}
@@ -647,190 +987,9 @@ public class UserProcess {
 		if (fileDescriptorId >= 0) {
 			handleClose(fileDescriptorId);
 		}
-=======
-	
-	return true;
-    }
-
-    /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
-     */
-    protected void unloadSections() {
-    }    
-
-    /**
-     * Initialize the processor's registers in preparation for running the
-     * program loaded into this process. Set the PC register to point at the
-     * start function, set the stack pointer register to point at the top of
-     * the stack, set the A0 and A1 registers to argc and argv, respectively,
-     * and initialize all other registers to 0.
-     */
-    public void initRegisters() {
-	Processor processor = Machine.processor();
-
-	// by default, everything's 0
-	for (int i=0; i<processor.numUserRegisters; i++)
-	    processor.writeRegister(i, 0);
-
-	// initialize PC and SP according
-	processor.writeRegister(Processor.regPC, initialPC);
-	processor.writeRegister(Processor.regSP, initialSP);
-
-	// initialize the first two argument registers to argc and argv
-	processor.writeRegister(Processor.regA0, argc);
-	processor.writeRegister(Processor.regA1, argv);
-    }
-
-    /**
-     * Handle the halt() system call. 
-     */
-    private int handleHalt() {
-    System.out.println("in handleHalt()");
-	Machine.halt();
-	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
-	return 0;
-    }
-    
-    //*Borys Anichin*//
-    private int handleCreate(int address) {
-    	System.out.println("in handleCreate()");                    
-        String fileName = readVirtualMemoryString(address, maxStringLength);
-        System.out.println("File name is " + fileName); 
-
-        OpenFile file  = ThreadedKernel.fileSystem.open(fileName, true);
-
-        if (file == null) {
-        	System.out.println("File is null"); 
-            return -1;
-        }
-        
-        int fileDescriptorId = getFileDescriptor();
-        if (fileDescriptorId < 0) {
-                return -1;
-        }
-        
-        fileDescriptors[fileDescriptorId].fileName = fileName;
-        fileDescriptors[fileDescriptorId].file = file;
-
-        System.out.println("File Created");        
-        return fileDescriptorId;
-    }
-    //*Borys Anichin*//
-    
-    //*Borys Anichin*//
-    private int handleOpen(int address) {
-    	
-    	System.out.println("in handleOpen()");
-
-        String fileName = readVirtualMemoryString(address, maxStringLength);
-
-        OpenFile file  = ThreadedKernel.fileSystem.open("fileName", false);
-
-        if (file == null) {
-        	System.out.println("File is null"); 
-            return -1;
-        }
-        
-        int fileDescriptorId = getFileDescriptor();
-        
-        if (fileDescriptorId < 0) {
-                return -1;
-        }
-        
-        fileDescriptors[fileDescriptorId].fileName = fileName;
-        fileDescriptors[fileDescriptorId].file = file;
-
-        System.out.println("File Opened.");
-        return fileDescriptorId;
-    }
-    //*Borys Anichin*//
-    
-    //*Borys Anichin*//
-    private int handleRead(int fileDescriptorId, int address, int numberOfBytesRequested) {
-	    
-        if (fileDescriptorId < 0 || fileDescriptorId >= maxOpenedFiles
-                || fileDescriptors[fileDescriptorId].file == null || numberOfBytesRequested < 0){
-            return -1;
-        }
-
-        FileDescriptor fileDescriptor = fileDescriptors[fileDescriptorId];
-        byte[] buffer = new byte[numberOfBytesRequested];
-
-        int numberOfBytesRead = fileDescriptor.file.read(buffer, 0, numberOfBytesRequested);
-
-        if (numberOfBytesRead < 0) {
-            return -1;
-        }
-        
-        int numberOfBytesWritten = writeVirtualMemory(address, buffer, 0, numberOfBytesRead);
-        
-        if (numberOfBytesWritten < 0) {
-            return -1;
-        }
-        
-        return numberOfBytesRead;
-    }
-    //Borys Anichin*//
-    
-    //Borys Anichin*//
-    private int handleWrite(int fileDescriptorId, int address, int bufferSize) {
-    	
-        if (fileDescriptorId < 0 || fileDescriptorId >= maxOpenedFiles
-                || fileDescriptors[fileDescriptorId].file == null || bufferSize < 0) {
-            return -1;
-        }
-
-        FileDescriptor fileDescriptor = fileDescriptors[fileDescriptorId];
-
-        byte[] buffer = new byte[bufferSize];
-
-        int numberOfBytesRead = readVirtualMemory(address, buffer);
-
-        int numberOfBytesWritten = fileDescriptor.file.write(buffer, 0, numberOfBytesRead);
-
-        if (numberOfBytesWritten < 0) {
-            return -1;
-        }
-
-        return numberOfBytesWritten;
-    }
-    //*Borys Anichin*//
-    
-    //*Borys Anichin*//
-    private int handleClose(int fileDescriptorId) {
-
-        if (fileDescriptorId < 0 || fileDescriptorId >= maxOpenedFiles) {
-            return -1;
-        }
-
-        FileDescriptor fileDescriptor = fileDescriptors[fileDescriptorId];
-
-        fileDescriptor.file.close();
-        fileDescriptor.file = null;
-        fileDescriptor.fileName = "";
-
-        return 0;
-    }
-    //*Borys Anichin*//
-    
-    //Borys Anichin*//
-    private int handleUnlink(int address) {
-
-        String fileName = readVirtualMemoryString(address, maxStringLength);
-        
-        if (fileName == null) {
-        	return -1;
-        }
-
-        int fileDescriptorId = findFileDescriptor(fileName);
-        
-        if (fileDescriptorId >= 0) {
-        	handleClose(fileDescriptorId);
-        }
->>>>>>> 75a82549501636e371d3ebcf1a7639ae806d327a
 
 		if (UserKernel.fileSystem.remove(fileName)) {
+			UserKernel.invalidateExecutable(fileName);
 			return 0;
 		}
 
@@ -838,6 +997,200 @@ public class UserProcess {
 	}
 	//*Borys Anichin*//
 
+	/**
+	 * Handle the exit() system call. Writes back and releases any
+	 * memory-mapped regions, closes open files, frees this process's memory,
+	 * and finishes the current thread. The kernel is terminated when the last
+	 * process exits.
+	 */
+	private int handleExit(int status) {
+		Lib.debug(dbgProcess, "UserProcess.handleExit(" + status + ")");
+
+		while (!memoryMaps.isEmpty())
+			unmap(memoryMaps.getFirst());
+
+		for (int i=0; i<maxOpenedFiles; i++) {
+			if (fileDescriptors[i].file != null)
+				handleClose(i);
+		}
+
+		unloadSections();
+		closeExecutable();
+
+		exitStatus = status;
+
+		UserKernel.unregisterProcess(pid);
+		if (UserKernel.getNumProcesses() == 0)
+			Kernel.kernel.terminate();
+
+		KThread.finish();
+
+		Lib.assertNotReached("exit() did not finish the thread!");
+		return 0;
+	}
+
+	/**
+	 * Handle the fork() system call. The child gets a copy-on-write share of
+	 * this process's address space, copies of its open files, and a thread
+	 * that returns from fork() with 0.
+	 *
+	 * @return	the child's process ID, or -1 on error.
+	 */
+	private int handleFork() {
+		UserProcess child = newUserProcess();
+
+		if (!forkAddressSpace(child)) {
+			for (int i=0; i<maxOpenedFiles; i++) {
+				if (child.fileDescriptors[i].file != null)
+					child.handleClose(i);
+			}
+			UserKernel.releasePid(child.pid);
+			return -1;
+		}
+
+		for (int i=0; i<maxOpenedFiles; i++) {
+			FileDescriptor fileDescriptor = fileDescriptors[i];
+			if (fileDescriptor.file == null || fileDescriptor.fileName.equals(""))
+				continue;
+
+			OpenFile file = ThreadedKernel.fileSystem.open(fileDescriptor.fileName, false);
+			if (file != null) {
+				file.seek(fileDescriptor.file.tell());
+				child.fileDescriptors[i].file = file;
+				child.fileDescriptors[i].fileName = fileDescriptor.fileName;
+			}
+		}
+
+		Processor processor = Machine.processor();
+		child.forkRegisters = new int[processor.numUserRegisters];
+		for (int i=0; i<processor.numUserRegisters; i++)
+			child.forkRegisters[i] = processor.readRegister(i);
+
+		// skip the syscall and return 0 in the child
+		child.forkRegisters[Processor.regV0] = 0;
+		child.forkRegisters[Processor.regPC] =
+			child.forkRegisters[Processor.regNextPC];
+		child.forkRegisters[Processor.regNextPC] += 4;
+
+		UserKernel.registerProcess(child.pid, child);
+
+		new UThread(child).setName("fork of " + pid).fork();
+
+		return child.pid;
+	}
+
+	/**
+	 * Handle the mmap() system call. Reserves a range of unused virtual pages
+	 * in the mapping area, well above the program image, and backs it with
+	 * the specified part of an open file. No page is read until it is first touched.
+	 *
+	 * @return	the virtual address of the start of the region, or -1 on
+	 *		error.
+	 */
+	private int handleMmap(int fileDescriptorId, int fileOffset, int length) {
+		if (fileDescriptorId < 0 || fileDescriptorId >= maxOpenedFiles
+				|| fileDescriptors[fileDescriptorId].file == null
+				|| fileOffset < 0 || fileOffset % pageSize != 0
+				|| length <= 0) {
+			return -1;
+		}
+
+		// the map keeps its own handle so that close() doesn't affect it
+		OpenFile file = ThreadedKernel.fileSystem.open(
+				fileDescriptors[fileDescriptorId].fileName, false);
+		if (file == null) {
+			return -1;
+		}
+
+		int mapPages = Lib.divRoundUp(length, pageSize);
+
+		// first fit among the gaps left by earlier maps
+		int firstVPN = Math.max(numPages, mmapBaseVPN);
+		int index = 0;
+		for (MemoryMap map : memoryMaps) {
+			if (firstVPN + mapPages <= map.getFirstVPN())
+				break;
+			firstVPN = Math.max(firstVPN, map.getFirstVPN() + map.getNumPages());
+			index++;
+		}
+
+		if ((long) firstVPN + mapPages > Processor.maxPages) {
+			file.close();
+			return -1;
+		}
+
+		MemoryMap map = new MemoryMap(file, fileOffset, length, firstVPN);
+		memoryMaps.add(index, map);
+
+		for (int vpn=firstVPN; vpn<firstVPN+mapPages; vpn++)
+			pageTable.set(vpn, new TranslationEntry(vpn, -1, false, false, false, false));
+
+		Lib.debug(dbgProcess, "	mapped " + mapPages + " pages at vpn " + firstVPN);
+		return firstVPN*pageSize;
+	}
+
+	/**
+	 * Handle the munmap() system call. Writes back the dirty pages of the
+	 * region starting at <i>address</i> and removes it from the address
+	 * space.
+	 *
+	 * @return	0 on success, or -1 if no region starts at <i>address</i>.
+	 */
+	private int handleMunmap(int address) {
+		if (Processor.offsetFromAddress(address) != 0)
+			return -1;
+
+		MemoryMap map = findMemoryMap(Processor.pageFromAddress(address));
+		if (map == null || map.getFirstVPN() != Processor.pageFromAddress(address))
+			return -1;
+
+		unmap(map);
+		return 0;
+	}
+
+	/**
+	 * Write back the dirty pages of a memory-mapped region, release its
+	 * physical pages, and remove it from the address space.
+	 *
+	 * @param	map	the region to remove.
+	 */
+	protected void unmap(MemoryMap map) {
+		flushTranslations();
+
+		for (int i=0; i<map.getNumPages(); i++) {
+			int vpn = map.getFirstVPN() + i;
+			TranslationEntry entry = pageTable.get(vpn);
+
+			if (entry.valid) {
+				if (entry.dirty && !map.writeBack(vpn, entry.ppn))
+					Lib.debug(dbgProcess, "	write back failed for vpn " + vpn);
+				pageUnloaded(entry);
+				UserKernel.releasePage(entry.ppn);
+			}
+
+			pageTable.set(vpn, null);
+		}
+
+		map.close();
+		memoryMaps.remove(map);
+	}
+
+	/**
+	 * Return the memory-mapped region containing the specified virtual page.
+	 *
+	 * @param	vpn	the virtual page to look up.
+	 * @return	the region containing <i>vpn</i>, or <tt>null</tt> if there
+	 *		is none.
+	 */
+	protected MemoryMap findMemoryMap(int vpn) {
+		for (MemoryMap map : memoryMaps) {
+			if (map.contains(vpn))
+				return map;
+		}
+
+		return null;
+	}
+
 	private static final int
 	syscallHalt = 0,
 	syscallExit = 1,
@@ -848,7 +1201,10 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallMmap = 10,
+	syscallMunmap = 13,
+	syscallFork = 14;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -869,6 +1225,10 @@ public class UserProcess {
 	 *								</tt></td></tr>
 	 * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
 	 * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+	 * <tr><td>10</td><td><tt>void *mmap(int fd, int offset, int length);
+	 *								</tt></td></tr>
+	 * <tr><td>13</td><td><tt>int  munmap(void *address);</tt></td></tr>
+	 * <tr><td>14</td><td><tt>int  fork();</tt></td></tr>
 	 * </table>
 	 * 
 	 * @param	syscall	the syscall number.
@@ -882,6 +1242,8 @@ public class UserProcess {
 		switch (syscall) {
 		case syscallHalt:
 			return handleHalt();
+		case syscallExit:
+			return handleExit(a0);
 		case syscallCreate:
 			return handleCreate(a0);
 		case syscallOpen:
@@ -894,6 +1256,12 @@ public class UserProcess {
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
+		case syscallMmap:
+			return handleMmap(a0, a1, a2);
+		case syscallMunmap:
+			return handleMunmap(a0);
+		case syscallFork:
+			return handleFork();
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 			Lib.assertNotReached("Unknown system call!");
@@ -914,16 +1282,45 @@ public class UserProcess {
 
 		switch (cause) {
 		case Processor.exceptionSyscall:
-			int result = handleSyscall(processor.readRegister(Processor.regV0),
+			int syscall = processor.readRegister(Processor.regV0);
+			long start = Machine.timer().getTime();
+
+			SyscallEvent event = new SyscallEvent();
+			event.begin();
+
+			int result = handleSyscall(syscall,
 					processor.readRegister(Processor.regA0),
 					processor.readRegister(Processor.regA1),
 					processor.readRegister(Processor.regA2),
 					processor.readRegister(Processor.regA3)
 					);
+			if (event.shouldCommit()) {
+				event.syscall = syscall;
+				event.pid = pid;
+				event.thread = KThread.currentThread().toString();
+				event.result = result;
+				event.tick = start;
+				event.ticks = Machine.timer().getTime() - start;
+				Machine.commitKernelEvent(event);
+			}
 			processor.writeRegister(Processor.regV0, result);
 			processor.advancePC();
 			break;				       
 
+		case Processor.exceptionPageFault:
+			int vpn = Processor.pageFromAddress(
+					processor.readRegister(Processor.regBadVAddr));
+			if (!handlePageFault(vpn))
+				handleFatalException(cause);
+			break;
+
+		case Processor.exceptionReadOnly:
+			vpn = Processor.pageFromAddress(
+					processor.readRegister(Processor.regBadVAddr));
+			if (getResidentPage(vpn, true) == null)
+				handleFatalException(cause);
+			break;
+
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: " +
 					Processor.exceptionNames[cause]);
@@ -931,6 +1328,18 @@ public class UserProcess {
 		}
 	}
 
+	/**
+	 * Terminate this process because of an exception it can't recover from.
+	 * Same as the process calling <tt>exit(-1)</tt>.
+	 *
+	 * @param	cause	the user exception that occurred.
+	 */
+	protected void handleFatalException(int cause) {
+		Lib.debug(dbgProcess, "Fatal exception: " +
+				Processor.exceptionNames[cause]);
+		handleExit(-1);
+	}
+
 	private void initializeListOfFileDescriptors() {
 
 		fileDescriptors = new FileDescriptor[maxOpenedFiles];
@@ -963,19 +1372,44 @@ public class UserProcess {
 	protected Coff coff;
 
 	/** This process's page table. */
-	protected TranslationEntry[] pageTable;
+	protected PageTable pageTable;
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
 	/** The number of pages in the program's stack. */
 	protected final int stackPages = 8;
 
+	/** The memory-mapped regions of this process, in address order. */
+	protected LinkedList<MemoryMap> memoryMaps = new LinkedList<MemoryMap>();
+
+	/** The virtual pages that are shared copy-on-write with another process. */
+	protected BitSet copyOnWrite = new BitSet();
+
+	/** The name of the file containing the program. */
+	protected String executableName;
+
+	/** The read-only pages this process shares with others running its
+	 * executable. */
+	protected SharedText sharedText;
+
+	/** This process's ID, assigned once it has been loaded. */
+	protected int pid;
+	/** The thread running this process's program. */
+	protected UThread thread;
+	private int exitStatus;
+
 	private int initialPC, initialSP;
+	private int[] forkRegisters = null;
 	private int argc, argv;
 
 	private FileDescriptor fileDescriptors[];
 
 	private static final int pageSize = Processor.pageSize;
+	/**
+	 * The first page of the area memory-mapped regions are placed in. The
+	 * gap below it costs nothing, since page tables are two-level.
+	 */
+	private static final int mmapBaseVPN = Processor.maxPages / 4;
 	private static final char dbgProcess = 'a';
 
 	//*Borys Anichin*//
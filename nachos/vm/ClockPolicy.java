@@ -0,0 +1,54 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Evicts pages with the clock algorithm. The frames are swept in order of
+ * physical page number; a frame that has been used since the hand last
+ * passed it has its used bits cleared and is given a second chance.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void frameLoaded(InvertedPageTable.Frame frame) {
+    }
+
+    public void frameFreed(InvertedPageTable.Frame frame) {
+    }
+
+    public void timerInterrupt() {
+    }
+
+    /**
+     * Advance the hand to the first frame that can be evicted and has not
+     * been used since the last sweep.
+     *
+     * @return	the frame to evict, or <tt>null</tt> if no frame can be
+     *		evicted.
+     */
+    public InvertedPageTable.Frame chooseVictim() {
+	int numPhysPages = Machine.processor().getNumPhysPages();
+
+	// after one full sweep every used bit has been cleared
+	for (int i=0; i<2*numPhysPages; i++) {
+	    InvertedPageTable.Frame frame =
+		VMKernel.invertedPageTable.getFrame(hand);
+	    hand = (hand+1) % numPhysPages;
+
+	    if (!VMKernel.canEvict(frame))
+		continue;
+
+	    if (!frame.testAndClearUsed())
+		return frame;
+	}
+
+	return null;
+    }
+
+    /** The next frame to be considered. */
+    private int hand = 0;
+}
@@ -0,0 +1,210 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of compressed pages, kept outside the Java heap. The swap
+ * file stores pages here before falling back to the file itself, so that
+ * compressible pages (zero-filled stacks, sparse arrays) cost no file system
+ * requests to swap out or back in.
+ *
+ * <p>
+ * The pool is divided into fixed-size chunks, and each page is compressed
+ * into a run of contiguous chunks. Pages that don't compress to less than
+ * half a page, or don't fit in the free space left, are rejected.
+ *
+ * @see	nachos.vm.SwapFile
+ */
+public class CompressedPageStore {
+    /**
+     * Allocate a new, empty pool.
+     *
+     * @param	capacity	the size of the pool, in bytes.
+     */
+    public CompressedPageStore(int capacity) {
+	numChunks = capacity / chunkSize;
+	pool = ByteBuffer.allocateDirect(numChunks*chunkSize);
+
+	deflater = new Deflater(Deflater.BEST_SPEED);
+	inflater = new Inflater();
+    }
+
+    /**
+     * Compress a page into the pool, replacing any page already stored under
+     * the same key.
+     *
+     * @param	key	the key to store the page under.
+     * @param	data	the array holding the page.
+     * @param	offset	the offset of the page in <i>data</i>.
+     * @return	<tt>true</tt> if the page was stored.
+     */
+    public boolean store(int key, byte[] data, int offset) {
+	remove(key);
+
+	deflater.reset();
+	deflater.setInput(data, offset, pageSize);
+	deflater.finish();
+	int length = deflater.deflate(buffer, 0, maxLength);
+
+	if (!deflater.finished()) {
+	    Machine.countKernelEvent(Stats.EventCompressionReject, 1);
+	    return false;
+	}
+
+	int count = (length + chunkSize-1) / chunkSize;
+	int chunk = findChunks(count);
+	if (chunk == -1) {
+	    Machine.countKernelEvent(Stats.EventCompressionReject, 1);
+	    return false;
+	}
+
+	usedChunks.set(chunk, chunk+count);
+	copyIn(chunk, buffer, length);
+	entries.put(key, new Entry(chunk, length));
+
+	Machine.countKernelEvent(Stats.EventCompressedStore, 1);
+	return true;
+    }
+
+    /**
+     * Decompress a page from the pool.
+     *
+     * @param	key	the key the page was stored under.
+     * @param	data	the array to decompress the page into.
+     * @param	offset	the offset in <i>data</i> to decompress the page to.
+     * @return	<tt>true</tt> if the page was in the pool and was loaded.
+     */
+    public boolean load(int key, byte[] data, int offset) {
+	Entry entry = entries.get(key);
+	if (entry == null)
+	    return false;
+
+	copyOut(entry.chunk, buffer, entry.length);
+
+	inflater.reset();
+	inflater.setInput(buffer, 0, entry.length);
+	try {
+	    if (inflater.inflate(data, offset, pageSize) != pageSize)
+		return false;
+	}
+	catch (DataFormatException e) {
+	    return false;
+	}
+
+	Machine.countKernelEvent(Stats.EventCompressedLoad, 1);
+	return true;
+    }
+
+    /**
+     * Test whether a page is stored under a key.
+     *
+     * @param	key	the key to test.
+     * @return	<tt>true</tt> if the pool holds a page under <i>key</i>.
+     */
+    public boolean contains(int key) {
+	return entries.containsKey(key);
+    }
+
+    /**
+     * Store a copy of a pooled page under another key, without
+     * decompressing it.
+     *
+     * @param	from	the key of the page to copy.
+     * @param	to	the key to store the copy under.
+     * @return	<tt>true</tt> if the copy was stored.
+     */
+    public boolean copy(int from, int to) {
+	remove(to);
+
+	Entry entry = entries.get(from);
+	if (entry == null)
+	    return false;
+
+	int count = (entry.length + chunkSize-1) / chunkSize;
+	int chunk = findChunks(count);
+	if (chunk == -1)
+	    return false;
+
+	usedChunks.set(chunk, chunk+count);
+	copyOut(entry.chunk, buffer, entry.length);
+	copyIn(chunk, buffer, entry.length);
+	entries.put(to, new Entry(chunk, entry.length));
+	return true;
+    }
+
+    /**
+     * Drop the page stored under a key, if there is one.
+     *
+     * @param	key	the key of the page to drop.
+     */
+    public void remove(int key) {
+	Entry entry = entries.remove(key);
+	if (entry != null) {
+	    int count = (entry.length + chunkSize-1) / chunkSize;
+	    usedChunks.clear(entry.chunk, entry.chunk+count);
+	}
+    }
+
+    /**
+     * Return the number of pages in the pool.
+     *
+     * @return	the number of pages in the pool.
+     */
+    public int getNumPages() {
+	return entries.size();
+    }
+
+    private int findChunks(int count) {
+	int chunk = usedChunks.nextClearBit(0);
+	while (chunk+count <= numChunks) {
+	    int next = usedChunks.nextSetBit(chunk);
+	    if (next == -1 || next >= chunk+count)
+		return chunk;
+	    chunk = usedChunks.nextClearBit(next);
+	}
+
+	return -1;
+    }
+
+    private void copyIn(int chunk, byte[] src, int length) {
+	ByteBuffer view = pool.duplicate();
+	view.position(chunk*chunkSize);
+	view.put(src, 0, length);
+    }
+
+    private void copyOut(int chunk, byte[] dst, int length) {
+	ByteBuffer view = pool.duplicate();
+	view.position(chunk*chunkSize);
+	view.get(dst, 0, length);
+    }
+
+    private static class Entry {
+	Entry(int chunk, int length) {
+	    this.chunk = chunk;
+	    this.length = length;
+	}
+
+	int chunk, length;
+    }
+
+    private ByteBuffer pool;
+    private int numChunks;
+    private BitSet usedChunks = new BitSet();
+    private HashMap<Integer, Entry> entries = new HashMap<Integer, Entry>();
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] buffer = new byte[maxLength];
+
+    private static final int pageSize = Processor.pageSize;
+    private static final int chunkSize = 64;
+    /** A page must compress to less than this to be worth keeping. */
+    private static final int maxLength = pageSize/2;
+}
@@ -0,0 +1,49 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Evicts the page that has been resident the longest, regardless of how
+ * recently it was used.
+ */
+public class FIFOPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new FIFO policy.
+     */
+    public FIFOPolicy() {
+    }
+
+    public void frameLoaded(InvertedPageTable.Frame frame) {
+	queue.add(frame);
+    }
+
+    public void frameFreed(InvertedPageTable.Frame frame) {
+	queue.remove(frame);
+    }
+
+    public void timerInterrupt() {
+    }
+
+    /**
+     * Choose the oldest frame that can be evicted.
+     *
+     * @return	the frame to evict, or <tt>null</tt> if no frame can be
+     *		evicted.
+     */
+    public InvertedPageTable.Frame chooseVictim() {
+	for (Iterator<InvertedPageTable.Frame> i=queue.iterator(); i.hasNext(); ) {
+	    InvertedPageTable.Frame frame = i.next();
+	    if (VMKernel.canEvict(frame))
+		return frame;
+	}
+
+	return null;
+    }
+
+    /** The resident frames, in the order they were loaded. */
+    private LinkedList<InvertedPageTable.Frame> queue =
+	new LinkedList<InvertedPageTable.Frame>();
+}
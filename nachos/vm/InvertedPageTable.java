@@ -0,0 +1,293 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+
+/**
+ * A page table shared by all processes, with one frame per physical page.
+ * Each resident virtual page is found from its <tt>(pid, vpn)</tt> pair with
+ * a single hash lookup, so the cost of a translation does not depend on the
+ * size of the address space.
+ *
+ * <p>
+ * A frame can be mapped by more than one virtual page at a time (shared
+ * text, or pages shared copy-on-write after a fork). The mappings of a frame
+ * are chained together, and the first of them is the frame's owner.
+ *
+ * <p>
+ * The table holds the processes' own <tt>TranslationEntry</tt> objects, so
+ * changes made to an entry through a page table are seen here as well. A
+ * page must be removed from the table before its entry is given a different
+ * physical page.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	frames = new Frame[numPhysPages];
+	for (int ppn=0; ppn<numPhysPages; ppn++)
+	    frames[ppn] = new Frame(ppn);
+
+	int numBuckets = 1;
+	while (numBuckets < 2*numPhysPages)
+	    numBuckets *= 2;
+	buckets = new Mapping[numBuckets];
+    }
+
+    /**
+     * Find the translation of a resident virtual page.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     * @return	the process's translation entry for the page, or
+     *		<tt>null</tt> if the page is not resident.
+     */
+    public TranslationEntry lookup(int pid, int vpn) {
+	// nothing here can yield, so there's no need to disable interrupts
+	for (Mapping m = buckets[hash(pid, vpn)]; m != null; m = m.nextInBucket) {
+	    if (m.pid == pid && m.entry.vpn == vpn)
+		return m.entry;
+	}
+
+	return null;
+    }
+
+    /**
+     * Add a resident virtual page to the table. If the frame was free, the
+     * process becomes its owner.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	pid	the process's ID.
+     * @param	entry	the process's translation entry for the page.
+     */
+    public void insert(VMProcess process, int pid, TranslationEntry entry) {
+	Lib.assertTrue(entry.valid);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	remove(pid, entry.vpn);
+
+	Frame frame = frames[entry.ppn];
+	Mapping m = new Mapping(process, pid, entry);
+
+	int b = hash(pid, entry.vpn);
+	m.nextInBucket = buckets[b];
+	buckets[b] = m;
+
+	if (frame.mappings == null) {
+	    frame.mappings = m;
+	    frame.used = true;
+	    frame.dirty = entry.dirty;
+	}
+	else {
+	    // keep the owner at the head of the chain
+	    m.nextInFrame = frame.mappings.nextInFrame;
+	    frame.mappings.nextInFrame = m;
+	}
+	frame.numMappings++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Remove a virtual page from the table. If it was the owner of its frame,
+     * the next mapping of the frame becomes the owner.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     */
+    public void remove(int pid, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int b = hash(pid, vpn);
+	Mapping prev = null;
+	Mapping m;
+	for (m = buckets[b]; m != null; prev = m, m = m.nextInBucket) {
+	    if (m.pid == pid && m.entry.vpn == vpn)
+		break;
+	}
+
+	if (m != null) {
+	    if (prev == null)
+		buckets[b] = m.nextInBucket;
+	    else
+		prev.nextInBucket = m.nextInBucket;
+
+	    Frame frame = frames[m.ppn];
+	    if (frame.mappings == m) {
+		frame.mappings = m.nextInFrame;
+	    }
+	    else {
+		Mapping p = frame.mappings;
+		while (p.nextInFrame != m)
+		    p = p.nextInFrame;
+		p.nextInFrame = m.nextInFrame;
+	    }
+
+	    if (--frame.numMappings == 0) {
+		frame.used = false;
+		frame.dirty = false;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the metadata of a physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the frame describing the page.
+     */
+    public Frame getFrame(int ppn) {
+	return frames[ppn];
+    }
+
+    private int hash(int pid, int vpn) {
+	int h = pid*0x9E3779B1 ^ vpn;
+	h ^= h >>> 16;
+	return h & (buckets.length-1);
+    }
+
+    /**
+     * The metadata kept for each physical page.
+     */
+    public static class Frame {
+	private Frame(int ppn) {
+	    this.ppn = ppn;
+	}
+
+	/**
+	 * Return the process that owns this frame.
+	 *
+	 * @return	the owner, or <tt>null</tt> if the frame is free.
+	 */
+	public VMProcess getOwner() {
+	    return (mappings == null) ? null : mappings.process;
+	}
+
+	/**
+	 * Return the owner's translation entry for this frame.
+	 *
+	 * @return	the owner's translation entry, or <tt>null</tt> if the
+	 *		frame is free.
+	 */
+	public TranslationEntry getEntry() {
+	    return (mappings == null) ? null : mappings.entry;
+	}
+
+	/**
+	 * Return the number of virtual pages mapping this frame.
+	 *
+	 * @return	the number of virtual pages mapping this frame.
+	 */
+	public int getNumMappings() {
+	    return numMappings;
+	}
+
+	/**
+	 * Return the translation entries of every virtual page mapping this
+	 * frame, the owner's first.
+	 *
+	 * @return	the translation entries mapping this frame.
+	 */
+	public TranslationEntry[] getEntries() {
+	    TranslationEntry[] entries = new TranslationEntry[numMappings];
+	    int i = 0;
+	    for (Mapping m = mappings; m != null; m = m.nextInFrame)
+		entries[i++] = m.entry;
+	    return entries;
+	}
+
+	/**
+	 * Return the processes of every virtual page mapping this frame, in the
+	 * same order as <tt>getEntries()</tt>.
+	 *
+	 * @return	the processes mapping this frame.
+	 */
+	public VMProcess[] getProcesses() {
+	    VMProcess[] processes = new VMProcess[numMappings];
+	    int i = 0;
+	    for (Mapping m = mappings; m != null; m = m.nextInFrame)
+		processes[i++] = m.process;
+	    return processes;
+	}
+
+	/**
+	 * Test whether this frame has been used through any of its mappings
+	 * since its used bits were last cleared.
+	 *
+	 * @return	<tt>true</tt> if the frame has been used.
+	 */
+	public boolean isUsed() {
+	    if (used)
+		return true;
+	    for (Mapping m = mappings; m != null; m = m.nextInFrame) {
+		if (m.entry.used)
+		    return true;
+	    }
+	    return false;
+	}
+
+	/**
+	 * Test whether this frame has been used since the last call, through
+	 * any of its mappings, and clear the used bits.
+	 *
+	 * @return	<tt>true</tt> if the frame has been used.
+	 */
+	public boolean testAndClearUsed() {
+	    boolean wasUsed = used;
+	    used = false;
+	    for (Mapping m = mappings; m != null; m = m.nextInFrame) {
+		wasUsed |= m.entry.used;
+		m.entry.used = false;
+	    }
+	    return wasUsed;
+	}
+
+	/**
+	 * Test whether evicting this frame would require writing it out.
+	 *
+	 * @return	<tt>true</tt> if any mapping of this frame is dirty.
+	 */
+	public boolean isDirty() {
+	    for (Mapping m = mappings; m != null; m = m.nextInFrame) {
+		if (m.entry.dirty)
+		    return true;
+	    }
+	    return false;
+	}
+
+	/** The physical page number of this frame. */
+	public final int ppn;
+	/** Set when a mapping of this frame has been used. */
+	public boolean used = false;
+	/** Set when a mapping of this frame has been written. */
+	public boolean dirty = false;
+	/** The number of times this frame has been pinned in memory. */
+	public int pinCount = 0;
+
+	private Mapping mappings = null;
+	private int numMappings = 0;
+    }
+
+    private static class Mapping {
+	Mapping(VMProcess process, int pid, TranslationEntry entry) {
+	    this.process = process;
+	    this.pid = pid;
+	    this.entry = entry;
+	    this.ppn = entry.ppn;
+	}
+
+	VMProcess process;
+	int pid, ppn;
+	TranslationEntry entry;
+	Mapping nextInBucket = null, nextInFrame = null;
+    }
+
+    private Frame[] frames;
+    private Mapping[] buckets;
+}
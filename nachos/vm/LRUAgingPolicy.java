@@ -0,0 +1,91 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+
+/**
+ * Approximates LRU with aging counters. On every timer interrupt each
+ * resident frame's counter is shifted right, and its used bit is shifted
+ * in at the top and then cleared. The frame with the smallest counter has
+ * gone the longest without being used, and is the one evicted.
+ */
+public class LRUAgingPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new LRU aging policy.
+     */
+    public LRUAgingPolicy() {
+	ages = new int[Machine.processor().getNumPhysPages()];
+    }
+
+    /**
+     * Start a newly loaded frame off as just used.
+     */
+    public void frameLoaded(InvertedPageTable.Frame frame) {
+	ages[frame.ppn] = usedBit;
+    }
+
+    public void frameFreed(InvertedPageTable.Frame frame) {
+	ages[frame.ppn] = 0;
+    }
+
+    /**
+     * Age every resident frame.
+     */
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	// the TLB holds the freshest used bits of the running process
+	UserProcess current = UserKernel.currentProcess();
+	if (current instanceof VMProcess)
+	    ((VMProcess) current).syncTLB();
+
+	for (int ppn=0; ppn<ages.length; ppn++) {
+	    InvertedPageTable.Frame frame =
+		VMKernel.invertedPageTable.getFrame(ppn);
+	    if (frame.getOwner() == null)
+		continue;
+
+	    ages[ppn] >>>= 1;
+	    if (frame.testAndClearUsed())
+		ages[ppn] |= usedBit;
+	}
+    }
+
+    /**
+     * Choose the frame with the smallest counter that can be evicted. A
+     * frame used since the last timer interrupt counts as newer than any
+     * counter. Ties are broken in favor of clean frames.
+     *
+     * @return	the frame to evict, or <tt>null</tt> if no frame can be
+     *		evicted.
+     */
+    public InvertedPageTable.Frame chooseVictim() {
+	InvertedPageTable.Frame victim = null;
+	int victimAge = 0;
+	boolean victimDirty = false;
+
+	for (int ppn=0; ppn<ages.length; ppn++) {
+	    InvertedPageTable.Frame frame =
+		VMKernel.invertedPageTable.getFrame(ppn);
+	    if (!VMKernel.canEvict(frame))
+		continue;
+
+	    int age = ages[ppn] | (frame.isUsed() ? usedBit<<1 : 0);
+	    boolean dirty = frame.isDirty();
+	    if (victim == null || age < victimAge ||
+		(age == victimAge && victimDirty && !dirty)) {
+		victim = frame;
+		victimAge = age;
+		victimDirty = dirty;
+	    }
+	}
+
+	return victim;
+    }
+
+    private int[] ages;
+
+    private static final int ageBits = 8;
+    /** The bit set in a counter when its frame has been used. */
+    private static final int usedBit = 1 << (ageBits-1);
+}
@@ -0,0 +1,48 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which physical page to evict when memory is full. The kernel's
+ * policy is named by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * A policy only chooses the victim; the kernel evicts every page mapping it.
+ * A policy must never choose a frame that is free, pinned, or otherwise
+ * can't be evicted (see <tt>VMKernel.canEvict()</tt>). Policies are called
+ * with the kernel's paging lock held, except for <tt>timerInterrupt()</tt>,
+ * which is called with interrupts disabled.
+ *
+ * @see	nachos.vm.VMKernel#allocatePage
+ */
+public interface PageReplacementPolicy {
+    /**
+     * Called when a free frame is given its first mapping.
+     *
+     * @param	frame	the frame that was loaded.
+     */
+    public void frameLoaded(InvertedPageTable.Frame frame);
+
+    /**
+     * Called when the last mapping of a frame is removed, leaving it free.
+     *
+     * @param	frame	the frame that was freed.
+     */
+    public void frameFreed(InvertedPageTable.Frame frame);
+
+    /**
+     * Called on every timer interrupt, so that the policy can sample the
+     * used bits of the resident pages.
+     */
+    public void timerInterrupt();
+
+    /**
+     * Choose a frame to evict. The used bits of the running process have
+     * been copied from the TLB to the page tables.
+     *
+     * @return	the frame to evict, or <tt>null</tt> if no frame can be
+     *		evicted.
+     */
+    public InvertedPageTable.Frame chooseVictim();
+}
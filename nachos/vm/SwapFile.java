@@ -0,0 +1,256 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+
+/**
+ * A file holding pages that have been evicted from physical memory. The file
+ * is divided into page-sized slots, and a bitmap records which slots are in
+ * use. The file grows as more slots are needed.
+ *
+ * <p>
+ * Pages are first offered to a compressed in-memory pool, whose size in bytes
+ * is given by the <tt>nachos.conf</tt> key <tt>SwapFile.compressedPoolSize</tt>
+ * (0 disables it). Only pages that don't fit in the pool are written to the
+ * file itself.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file.
+     *
+     * @param	name	the name of the file to create.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "unable to create swap file " + name);
+
+	int poolSize = Config.getInteger("SwapFile.compressedPoolSize",
+					 Machine.processor().getNumPhysPages()*
+					 pageSize/4);
+	if (poolSize > 0)
+	    pool = new CompressedPageStore(poolSize);
+    }
+
+    /**
+     * Allocate a free slot.
+     *
+     * @return	the slot number.
+     */
+    public int allocateSlot() {
+	int slot = usedSlots.nextClearBit(0);
+	usedSlots.set(slot);
+	return slot;
+    }
+
+    /**
+     * Allocate a run of contiguous free slots, so that pages written
+     * together can be read back together.
+     *
+     * @param	count	the number of slots to allocate.
+     * @return	the first slot of the run.
+     */
+    public int allocateSlots(int count) {
+	int slot = usedSlots.nextClearBit(0);
+	while (usedSlots.nextSetBit(slot) != -1 &&
+	       usedSlots.nextSetBit(slot) < slot+count)
+	    slot = usedSlots.nextClearBit(usedSlots.nextSetBit(slot));
+
+	usedSlots.set(slot, slot+count);
+	return slot;
+    }
+
+    /**
+     * Allocate a specific slot, if it is free.
+     *
+     * @param	slot	the slot to allocate.
+     * @return	<tt>true</tt> if the slot was free and is now allocated.
+     */
+    public boolean allocateSlot(int slot) {
+	if (slot < 0 || usedSlots.get(slot))
+	    return false;
+
+	usedSlots.set(slot);
+	return true;
+    }
+
+    /**
+     * Test whether a slot is free.
+     *
+     * @param	slot	the slot to test.
+     * @return	<tt>true</tt> if the slot is free.
+     */
+    public boolean isSlotFree(int slot) {
+	return slot >= 0 && !usedSlots.get(slot);
+    }
+
+    /**
+     * Free a slot allocated by <tt>allocateSlot()</tt>.
+     *
+     * @param	slot	the slot to free.
+     */
+    public void freeSlot(int slot) {
+	Lib.assertTrue(usedSlots.get(slot));
+	usedSlots.clear(slot);
+
+	if (pool != null)
+	    pool.remove(slot);
+    }
+
+    /**
+     * Return the number of slots in use.
+     *
+     * @return	the number of slots in use.
+     */
+    public int getNumUsedSlots() {
+	return usedSlots.cardinality();
+    }
+
+    /**
+     * Copy a physical page into a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the physical page to copy.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean writePage(int slot, int ppn) {
+	return writePages(slot, new int[] { ppn });
+    }
+
+    /**
+     * Copy a slot into a physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    public boolean readPage(int slot, int ppn) {
+	return readPages(slot, new int[] { ppn });
+    }
+
+    /**
+     * Copy physical pages into a run of contiguous slots. Pages that fit in
+     * the compressed pool are kept there; the rest are written to the file
+     * with a single write for each run of adjacent slots.
+     *
+     * @param	slot	the first slot to write.
+     * @param	ppns	the physical pages to copy, in slot order.
+     * @return	<tt>true</tt> if every page was written.
+     */
+    public boolean writePages(int slot, int[] ppns) {
+	// gather the pages in slot order
+	byte[] buf = new byte[ppns.length*pageSize];
+	for (int i=0; i<ppns.length; i++) {
+	    Machine.processor().readMemory(ppns[i]*pageSize, buf, i*pageSize,
+					   pageSize);
+	}
+
+	boolean[] pooled = new boolean[ppns.length];
+	for (int i=0; i<ppns.length; i++) {
+	    Lib.assertTrue(usedSlots.get(slot+i));
+	    pooled[i] = (pool != null && pool.store(slot+i, buf, i*pageSize));
+	}
+
+	boolean success = true;
+	for (int first=0; first<ppns.length; ) {
+	    if (pooled[first]) {
+		first++;
+		continue;
+	    }
+
+	    int last = first;
+	    while (last+1 < ppns.length && !pooled[last+1])
+		last++;
+
+	    int length = (last-first+1)*pageSize;
+	    success &= (file.write((slot+first)*pageSize, buf,
+				   first*pageSize, length) == length);
+	    first = last+1;
+	}
+
+	return success;
+    }
+
+    /**
+     * Copy a run of contiguous slots into physical pages. Pages held in the
+     * compressed pool are decompressed, and the rest are read from the file
+     * with a single read.
+     *
+     * @param	slot	the first slot to read.
+     * @param	ppns	the physical pages to fill, in slot order.
+     * @return	<tt>true</tt> if every page was read.
+     */
+    public boolean readPages(int slot, int[] ppns) {
+	int first = -1, last = -1;
+	for (int i=0; i<ppns.length; i++) {
+	    Lib.assertTrue(usedSlots.get(slot+i));
+	    if (pool == null || !pool.contains(slot+i)) {
+		if (first == -1)
+		    first = i;
+		last = i;
+	    }
+	}
+
+	byte[] buf = new byte[ppns.length*pageSize];
+	if (first != -1) {
+	    // pooled slots in the middle are read too, but then overwritten
+	    int length = (last-first+1)*pageSize;
+	    if (file.read((slot+first)*pageSize, buf, first*pageSize, length)
+		!= length)
+		return false;
+	}
+
+	for (int i=0; i<ppns.length; i++) {
+	    if (pool != null && pool.contains(slot+i) &&
+		!pool.load(slot+i, buf, i*pageSize))
+		return false;
+
+	    Machine.processor().writeMemory(ppns[i]*pageSize, buf, i*pageSize,
+					    pageSize);
+	}
+	return true;
+    }
+
+    /**
+     * Copy the contents of one slot to another.
+     *
+     * @param	from	the slot to read.
+     * @param	to	the slot to write.
+     * @return	<tt>true</tt> if the whole page was copied.
+     */
+    public boolean copySlot(int from, int to) {
+	Lib.assertTrue(usedSlots.get(from) && usedSlots.get(to));
+
+	if (pool != null) {
+	    if (pool.copy(from, to))
+		return true;
+	    if (pool.contains(from)) {
+		byte[] buf = new byte[pageSize];
+		return pool.load(from, buf, 0) &&
+		    file.write(to*pageSize, buf, 0, pageSize) == pageSize;
+	    }
+	}
+
+	byte[] buf = new byte[pageSize];
+	return file.read(from*pageSize, buf, 0, pageSize) == pageSize &&
+	    file.write(to*pageSize, buf, 0, pageSize) == pageSize;
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    private BitSet usedSlots = new BitSet();
+    private CompressedPageStore pool = null;
+
+    private static final int pageSize = Processor.pageSize;
+}
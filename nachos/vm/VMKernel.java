@@ -5,6 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -17,10 +18,53 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Creates the inverted page table, the page
+     * replacement policy named by the <tt>nachos.conf</tt> key
+     * <tt>VMKernel.replacementPolicy</tt>, and the swap file, whose name is
+     * given by the key <tt>VMKernel.swapFile</tt>. Also starts the page-out
+     * daemon, which keeps between <tt>VMKernel.freePagesLow</tt> and
+     * <tt>VMKernel.freePagesHigh</tt> pages free; a low watermark of 0
+     * disables it.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
+
+	String policyName = Config.getString("VMKernel.replacementPolicy",
+					     "nachos.vm.ClockPolicy");
+	replacementPolicy =
+	    (PageReplacementPolicy) Lib.constructObject(policyName);
+	Machine.setReplacementPolicy(policyName);
+
+	// let the policy sample used bits after the alarm has had its turn
+	Machine.timer().setInterruptHandler(new Runnable() {
+		public void run() {
+		    alarm.timerInterrupt();
+		    replacementPolicy.timerInterrupt();
+		}
+	    });
+
+	pagingLock = new Lock();
+	swapFile = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	// with very little memory, a free pool costs more faults than it saves
+	freePagesLow = Config.getInteger("VMKernel.freePagesLow",
+					 numPhysPages/16);
+	freePagesHigh = Config.getInteger("VMKernel.freePagesHigh",
+					  Math.max(freePagesLow+1, numPhysPages/8));
+	Lib.assertTrue(freePagesLow >= 0 && freePagesHigh >= freePagesLow &&
+		       freePagesHigh < numPhysPages,
+		       "bad value for VMKernel.freePagesLow or freePagesHigh");
+
+	pageoutNeeded = new Condition2(pagingLock);
+	if (freePagesLow > 0) {
+	    new KThread(new Runnable() {
+		    public void run() { pageoutDaemon(); }
+		}).setName("pageout daemon").fork();
+	}
     }
 
     /**
@@ -41,11 +85,229 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swapFile.close();
+
 	super.terminate();
     }
 
+    /**
+     * Checkpoints are not supported here: evicted pages live in the swap
+     * file and compressed pool, which are not part of a checkpoint.
+     *
+     * @return	<tt>false</tt>.
+     */
+    protected boolean checkpointsSupported() {
+	return false;
+    }
+
+    /**
+     * Allocate a physical page. Pages are normally taken from the free list,
+     * which the page-out daemon keeps topped up; if it is empty, a page is
+     * evicted here instead, with the victim chosen by the replacement
+     * policy. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @return	the physical page number, or -1 if no page could be freed.
+     */
+    public static int allocatePage() {
+	return allocatePage(-1);
+    }
+
+    /**
+     * Allocate a physical page as <tt>allocatePage()</tt> does, but take the
+     * specified page if it is free.
+     *
+     * @param	preferred	the page to use if possible, or -1.
+     * @return	the physical page number, or -1 if no page could be freed.
+     */
+    public static int allocatePage(int preferred) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int ppn;
+	while ((ppn = UserKernel.getFreePage(preferred)) == -1) {
+	    if (!evictPage()) {
+		Lib.debug(dbgVM, "\tno page can be evicted");
+		return -1;
+	    }
+	}
+
+	if (UserKernel.getNumFreePages() < freePagesLow)
+	    pageoutNeeded.wake();
+
+	return ppn;
+    }
+
+    /**
+     * Evict the frame chosen by the replacement policy. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @return	<tt>true</tt> if a frame was evicted.
+     */
+    private static boolean evictPage() {
+	// bring the used bits of the running process up to date
+	UserProcess current = UserKernel.currentProcess();
+	if (current instanceof VMProcess)
+	    ((VMProcess) current).syncTLB();
+
+	InvertedPageTable.Frame victim = replacementPolicy.chooseVictim();
+	if (victim == null)
+	    return false;
+	Lib.assertTrue(canEvict(victim));
+
+	Machine.countKernelEvent(Stats.EventPageEviction, 1);
+
+	// every page table sharing the frame has to let go of it
+	VMProcess[] processes = victim.getProcesses();
+	TranslationEntry[] entries = victim.getEntries();
+	for (int i=0; i<entries.length; i++)
+	    processes[i].evictPage(entries[i]);
+
+	return true;
+    }
+
+    /**
+     * The body of the page-out daemon. Whenever the number of free pages
+     * drops below the low watermark, the daemon evicts pages until it
+     * reaches the high watermark, and then writes out the dirty pages that
+     * haven't been used recently, so that they can be evicted later without
+     * a write on the faulting process's path.
+     */
+    private static void pageoutDaemon() {
+	pagingLock.acquire();
+
+	while (true) {
+	    while (UserKernel.getNumFreePages() >= freePagesLow)
+		pageoutNeeded.sleep();
+
+	    Machine.countKernelEvent(Stats.EventPageoutWakeup, 1);
+	    Lib.debug(dbgVM, "\tpageout daemon woken with " +
+		      UserKernel.getNumFreePages() + " free pages");
+
+	    while (UserKernel.getNumFreePages() < freePagesHigh) {
+		int numFree = UserKernel.getNumFreePages();
+		if (!evictPage())
+		    break;
+		Machine.countKernelEvent(Stats.EventPageReclaimed,
+					 UserKernel.getNumFreePages() - numFree);
+	    }
+
+	    cleanPages(freePagesHigh);
+	}
+    }
+
+    /**
+     * Write out dirty pages that can be evicted and haven't been used since
+     * their used bits were last cleared, leaving them resident but clean.
+     *
+     * @param	maxPages	the most frames to clean.
+     */
+    private static void cleanPages(int maxPages) {
+	int numPhysPages = Machine.processor().getNumPhysPages();
+
+	for (int ppn=0; ppn<numPhysPages && maxPages > 0; ppn++) {
+	    InvertedPageTable.Frame frame = invertedPageTable.getFrame(ppn);
+	    if (!canEvict(frame) || frame.isUsed() || !frame.isDirty())
+		continue;
+
+	    VMProcess[] processes = frame.getProcesses();
+	    TranslationEntry[] entries = frame.getEntries();
+	    for (int i=0; i<entries.length; i++) {
+		if (entries[i].dirty)
+		    processes[i].cleanPage(entries[i]);
+	    }
+
+	    Machine.countKernelEvent(Stats.EventPageCleaned, 1);
+	    maxPages--;
+	}
+    }
+
+    /**
+     * Return the physical page that untouched zero-filled pages are mapped
+     * to, allocating it if it isn't loaded. Processes map it read-only and
+     * copy-on-write. The kernel holds its own reference to the page for as
+     * long as any process maps it. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @return	the physical page number of the shared zero page, or -1 if
+     *		no page could be freed for it.
+     */
+    public static int getZeroPage() {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	if (zeroPage == -1) {
+	    // a free page that is already cleared saves a fill
+	    int ppn = UserKernel.getZeroedPage();
+	    if (ppn == -1) {
+		ppn = allocatePage();
+		if (ppn == -1)
+		    return -1;
+
+		Machine.processor().fillMemory(ppn*pageSize, pageSize, (byte) 0);
+	    }
+	    zeroPage = ppn;
+	}
+
+	return zeroPage;
+    }
+
+    /**
+     * Test whether a physical page is the shared zero page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if <i>ppn</i> is the shared zero page.
+     */
+    public static boolean isZeroPage(int ppn) {
+	return ppn == zeroPage;
+    }
+
+    /**
+     * Called when the last process mapping the shared zero page lets go of
+     * it. Drops the kernel's reference, so that the page is freed.
+     */
+    static void zeroPageUnmapped() {
+	Lib.assertTrue(zeroPage != -1);
+
+	UserKernel.releasePage(zeroPage);
+	zeroPage = -1;
+    }
+
+    /**
+     * Test whether a frame may be chosen for eviction. Frames that are free
+     * or pinned can't be, nor can frames that would not be freed by evicting
+     * all their pages.
+     *
+     * @param	frame	the frame to test.
+     * @return	<tt>true</tt> if the frame may be evicted.
+     */
+    static boolean canEvict(InvertedPageTable.Frame frame) {
+	// the kernel's reference to the zero page goes with its last mapping
+	return frame.getOwner() != null && frame.pinCount == 0 &&
+	    (frame.ppn == zeroPage || VMProcess.canEvict(frame));
+    }
+
+    /** The resident pages of every process, by physical page. */
+    public static InvertedPageTable invertedPageTable;
+
+    /** Held while pages are being faulted in, evicted or released. */
+    public static Lock pagingLock;
+
+    /** Where evicted pages are kept. */
+    public static SwapFile swapFile;
+
+    /** Chooses the pages to evict. */
+    public static PageReplacementPolicy replacementPolicy;
+
+    /** The shared page of zeros, or -1 if it isn't loaded. */
+    private static int zeroPage = -1;
+
+    /** The daemon is woken when fewer pages than this are free. */
+    private static int freePagesLow;
+    /** The daemon frees pages until this many are free. */
+    private static int freePagesHigh;
+    /** Signalled when the free list drops below the low watermark. */
+    private static Condition2 pageoutNeeded;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -18,37 +21,721 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. The contents of the TLB are
+     * saved, after their used and dirty bits are copied to the page table,
+     * so that they can be reloaded when this process runs again.
      */
     public void saveState() {
 	super.saveState();
+
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	if (savedTLB == null)
+	    savedTLB = new TranslationEntry[processor.getTLBSize()];
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry cached = processor.readTLBEntry(i);
+	    if (cached.valid)
+		syncTranslation(cached);
+	    savedTLB[i] = cached;
+	}
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. Reloads the TLB entries saved by
+     * <tt>saveState()</tt>, except those whose pages have been moved or
+     * unloaded since.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	// another process may have left its translations behind
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = null;
+	    if (savedTLB != null && savedTLB[i].valid) {
+		if (savedTLB[i].size > 1)
+		    entry = findSuperpage(savedTLB[i].vpn);
+		else
+		    entry = lookupPage(savedTLB[i].vpn);
+	    }
+
+	    if (entry != null && entry.ppn == savedTLB[i].ppn)
+		processor.writeTLBEntry(i, entry);
+	    else
+		processor.writeTLBEntry(i, new TranslationEntry());
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits of every valid TLB entry back to the page
+     * table, and invalidate the TLB.
+     */
+    protected void flushTranslations() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry cached = processor.readTLBEntry(i);
+	    if (cached.valid)
+		syncTranslation(cached);
+	    processor.writeTLBEntry(i, new TranslationEntry());
+	}
+
+	savedTLB = null;
+    }
+
+    /**
+     * Copy the used and dirty bits of every valid TLB entry back to the page
+     * table, and clear the used bits in the TLB, leaving the entries valid.
+     * Called before the used bits are examined by page replacement.
+     */
+    public void syncTLB() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry cached = processor.readTLBEntry(i);
+	    if (cached.valid && cached.used) {
+		syncTranslation(cached);
+		cached.used = false;
+		processor.writeTLBEntry(i, cached);
+	    }
+	}
+    }
+
+    /**
+     * Return the translation entry for the specified virtual page, making the
+     * page resident first if it is not. Holds the kernel's paging lock, so
+     * that the page can't be evicted while it is being brought in.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	writing	<tt>true</tt> if the page is about to be written.
+     * @return	the translation entry for the page, or <tt>null</tt> if the
+     *		page is not part of this address space or can't be written.
+     */
+    protected TranslationEntry getResidentPage(int vpn, boolean writing) {
+	boolean locked = acquirePagingLock();
+	TranslationEntry entry = super.getResidentPage(vpn, writing);
+	releasePagingLock(locked);
+
+	return entry;
+    }
+
+    /**
+     * Return the translation entry for the specified virtual page, making the
+     * page resident first if it is not, and pin its frame so that it is not
+     * evicted while the kernel copies data to or from it. Releasing the
+     * paging lock can let other threads run, so the frame has to be pinned
+     * before the lock is released.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	writing	<tt>true</tt> if the page is about to be written.
+     * @return	the translation entry for the page, or <tt>null</tt> if the
+     *		page is not part of this address space or can't be written.
+     */
+    protected TranslationEntry pinResidentPage(int vpn, boolean writing) {
+	boolean locked = acquirePagingLock();
+	TranslationEntry entry = super.getResidentPage(vpn, writing);
+	if (entry != null)
+	    VMKernel.invertedPageTable.getFrame(entry.ppn).pinCount++;
+	releasePagingLock(locked);
+
+	return entry;
+    }
+
+    /**
+     * Unpin a frame pinned by <tt>pinResidentPage()</tt>. The paging lock
+     * isn't needed, since nothing can switch threads during the update.
+     *
+     * @param	entry	the translation entry of the page.
+     */
+    protected void unpinPage(TranslationEntry entry) {
+	InvertedPageTable.Frame frame =
+	    VMKernel.invertedPageTable.getFrame(entry.ppn);
+	Lib.assertTrue(frame.pinCount > 0);
+	frame.pinCount--;
+    }
+
+    /**
+     * Allocate a physical page for this process, evicting a page if memory
+     * is full. The page is meant for the page being faulted in or copied.
+     *
+     * @return	the physical page number, or -1 if no page could be freed.
+     */
+    protected int allocatePage() {
+	boolean locked = acquirePagingLock();
+	int ppn = VMKernel.allocatePage(preferredPage(allocationVPN));
+	releasePagingLock(locked);
+
+	return ppn;
+    }
+
+    /**
+     * Choose the physical page that would keep a virtual page's superpage
+     * region physically contiguous: the page at the right distance from a
+     * page of the region that is already resident, or else the matching
+     * page of a free aligned block.
+     *
+     * @param	vpn	the virtual page about to be given a physical page.
+     * @return	the physical page to try first, or -1 for any page.
+     */
+    private int preferredPage(int vpn) {
+	if (superpageSize == 1 || vpn < 0)
+	    return -1;
+
+	int base = vpn & ~(superpageSize-1);
+	for (int i=base; i<base+superpageSize; i++) {
+	    TranslationEntry entry = pageTable.get(i);
+	    if (entry != null && entry.valid && !copyOnWrite.get(i) &&
+		findMemoryMap(i) == null) {
+		int ppn = entry.ppn + (vpn-i);
+		return (ppn >= 0 && ppn < Machine.processor().getNumPhysPages())
+		    ? ppn : -1;
+	    }
+	}
+
+	int block = UserKernel.findFreeBlock(superpageSize);
+	return (block == -1) ? -1 : block + (vpn-base);
+    }
+
+    /**
+     * Give this process a private copy of a copy-on-write page. The page
+     * being copied is pinned, so that it isn't evicted while a page is found
+     * for the copy. The TLB still translates the page to the shared,
+     * read-only physical page, so its entries for the page are dropped.
+     *
+     * @param	vpn	the virtual page being written.
+     * @return	<tt>true</tt> if the page is now writable.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+	boolean locked = acquirePagingLock();
+
+	invalidateTranslations(vpn);
+
+	InvertedPageTable.Frame frame =
+	    VMKernel.invertedPageTable.getFrame(pageTable.get(vpn).ppn);
+	frame.pinCount++;
+	allocationVPN = vpn;
+	boolean success = super.handleCopyOnWrite(vpn);
+	frame.pinCount--;
+
+	releasePagingLock(locked);
+	return success;
+    }
+
+    /**
+     * Share this process's address space with a newly forked child. Besides
+     * sharing resident pages, the child is given its own copy of every page
+     * this process has in the swap file.
+     *
+     * @param	child	the process being created by <tt>fork()</tt>.
+     * @return	<tt>true</tt> if the address space was shared successfully.
+     */
+    protected boolean forkAddressSpace(UserProcess child) {
+	boolean locked = acquirePagingLock();
+
+	boolean success = super.forkAddressSpace(child);
+	if (success) {
+	    VMProcess vmChild = (VMProcess) child;
+	    for (Integer vpn : swapSlots.keySet()) {
+		int slot = VMKernel.swapFile.allocateSlot();
+		vmChild.swapSlots.put(vpn, slot);
+		if (!VMKernel.swapFile.copySlot(swapSlots.get(vpn), slot))
+		    Lib.debug(dbgVM, "\tswap copy failed for vpn " + vpn);
+	    }
+	}
+
+	releasePagingLock(locked);
+	return success;
+    }
+
+    /**
+     * Write back and remove a memory-mapped region, while holding the paging
+     * lock so that none of its pages are being evicted at the same time.
+     *
+     * @param	map	the region to remove.
+     */
+    protected void unmap(MemoryMap map) {
+	boolean locked = acquirePagingLock();
+	super.unmap(map);
+	releasePagingLock(locked);
+    }
+
+    /**
+     * Test whether evicting every page mapping a frame would free it. This
+     * is not the case if something other than a page table or the shared
+     * text cache holds a reference to the physical page.
+     *
+     * @param	frame	the frame to test.
+     * @return	<tt>true</tt> if the frame may be evicted.
+     */
+    static boolean canEvict(InvertedPageTable.Frame frame) {
+	VMProcess[] processes = frame.getProcesses();
+	TranslationEntry[] entries = frame.getEntries();
+
+	int references = UserKernel.getPageReferences(frame.ppn) - entries.length;
+	for (int i=0; i<entries.length; i++) {
+	    SharedText text = processes[i].sharedText;
+	    if (text == null || text.getPage(entries[i].vpn) != frame.ppn)
+		continue;
+
+	    // count each cache entry once
+	    boolean counted = false;
+	    for (int j=0; j<i; j++)
+		counted |= (processes[j].sharedText == text);
+	    if (!counted)
+		references--;
+	}
+
+	return references == 0;
+    }
+
+    /**
+     * Evict a resident page of this process, dropping its reference to the
+     * physical page. A dirty page of a memory-mapped region is written back
+     * to its file, and any other dirty page is written to the swap file.
+     * Clean pages either still match their swap slot, or can be loaded again
+     * from the executable or zero-filled. The caller must hold the paging
+     * lock.
+     *
+     * @param	entry	the translation entry of the page.
+     */
+    void evictPage(TranslationEntry entry) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	int vpn = entry.vpn, ppn = entry.ppn;
+
+	// pick up the dirty bit from the TLB, and stop using the page
+	invalidateTranslations(vpn);
+
+	// this entry's dirty bit says whether the page still matches this
+	// process's swap slot or executable
+	boolean dirty = entry.dirty;
+
+	pageUnloaded(entry);
+	entry.valid = false;
+
+	Lib.debug(dbgVM, "\tevicting vpn " + vpn + " of process " + pid +
+		  " from ppn " + ppn + (dirty ? " (dirty)" : ""));
+
+	MemoryMap map = findMemoryMap(vpn);
+	if (map != null) {
+	    if (dirty && !map.writeBack(vpn, ppn))
+		Lib.debug(dbgVM, "\twrite back failed for vpn " + vpn);
+	}
+	else if (dirty) {
+	    pageOut(vpn, ppn);
+	}
+
+	entry.dirty = false;
+
+	// the page is private from now on
+	copyOnWrite.clear(vpn);
+	if (sharedText != null && sharedText.getPage(vpn) == ppn)
+	    sharedText.removePage(vpn);
+	UserKernel.releasePage(ppn);
+    }
+
+    /**
+     * Write a dirty resident page out, leaving it resident but clean. A page
+     * of a memory-mapped region is written back to its file, and any other
+     * page is written to the swap file. The caller must hold the paging lock,
+     * and this process must not be running.
+     *
+     * @param	entry	the translation entry of the page.
+     */
+    void cleanPage(TranslationEntry entry) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+	Lib.assertTrue(entry.valid && entry.dirty);
+	Lib.assertTrue(UserKernel.currentProcess() != this);
+
+	int vpn = entry.vpn;
+
+	MemoryMap map = findMemoryMap(vpn);
+	if (map != null) {
+	    if (!map.writeBack(vpn, entry.ppn))
+		Lib.debug(dbgVM, "\twrite back failed for vpn " + vpn);
+	}
+	else {
+	    pageOut(vpn, entry.ppn);
+	}
+
+	entry.dirty = false;
+    }
+
+    /**
+     * Write an evicted page to its swap slot. Dirty resident pages next to
+     * it are written in the same request, into the slots next to its own,
+     * and left resident but clean, so that evicting them later costs
+     * nothing. At most <tt>clusterSize</tt> pages are written at once.
+     *
+     * @param	vpn	the page being evicted.
+     * @param	ppn	the physical page holding it.
+     */
+    private void pageOut(int vpn, int ppn) {
+	Integer slot = swapSlots.get(vpn);
+
+	int first = vpn, last = vpn;
+	while (last-first+1 < clusterSize && canCluster(last+1, vpn, slot))
+	    last++;
+	while (last-first+1 < clusterSize && canCluster(first-1, vpn, slot))
+	    first--;
+
+	int firstSlot;
+	if (slot == null) {
+	    firstSlot = VMKernel.swapFile.allocateSlots(last-first+1);
+	    for (int i=first; i<=last; i++)
+		swapSlots.put(i, firstSlot + (i-first));
+	}
+	else {
+	    firstSlot = slot - (vpn-first);
+	    for (int i=first; i<=last; i++) {
+		if (!swapSlots.containsKey(i)) {
+		    Lib.assertTrue(VMKernel.swapFile.allocateSlot(firstSlot + (i-first)));
+		    swapSlots.put(i, firstSlot + (i-first));
+		}
+	    }
+	}
+
+	int[] ppns = new int[last-first+1];
+	for (int i=first; i<=last; i++)
+	    ppns[i-first] = (i == vpn) ? ppn : pageTable.get(i).ppn;
+
+	if (!VMKernel.swapFile.writePages(firstSlot, ppns))
+	    Lib.debug(dbgVM, "\tswap out failed for vpn " + vpn);
+
+	if (ppns.length > 1) {
+	    Lib.debug(dbgVM, "\tclustered swap out of vpns " + first + "-" +
+		      last);
+	}
+
+	for (int i=first; i<=last; i++) {
+	    if (i != vpn)
+		pageTable.get(i).dirty = false;
+	}
+
+	Machine.countKernelEvent(Stats.EventPageOut, ppns.length);
+    }
+
+    /**
+     * Test whether a page can be written out along with an evicted page.
+     * It must be resident, dirty, not part of a memory-mapped region and
+     * not pinned, and its swap slot must be, or be able to become, the one
+     * at the same distance from the evicted page's slot.
+     */
+    private boolean canCluster(int vpn, int victim, Integer victimSlot) {
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	TranslationEntry entry = pageTable.get(vpn);
+	if (!entry.valid || !entry.dirty || findMemoryMap(vpn) != null ||
+	    VMKernel.invertedPageTable.getFrame(entry.ppn).pinCount > 0)
+	    return false;
+
+	Integer slot = swapSlots.get(vpn);
+	if (victimSlot == null)
+	    return slot == null;
+
+	int wanted = victimSlot + (vpn-victim);
+	if (slot == null)
+	    return VMKernel.swapFile.isSlotFree(wanted);
+	else
+	    return slot == wanted;
+    }
+
+    /**
+     * Record a newly resident page in the inverted page table.
+     *
+     * @param	entry	the translation entry of the page, now valid.
+     */
+    protected void pageLoaded(TranslationEntry entry) {
+	VMKernel.invertedPageTable.insert(this, pid, entry);
+
+	InvertedPageTable.Frame frame =
+	    VMKernel.invertedPageTable.getFrame(entry.ppn);
+	if (frame.getNumMappings() == 1)
+	    VMKernel.replacementPolicy.frameLoaded(frame);
+    }
+
+    /**
+     * Remove a page that is about to lose its physical page from the
+     * inverted page table.
+     *
+     * @param	entry	the translation entry of the page, still valid.
+     */
+    protected void pageUnloaded(TranslationEntry entry) {
+	VMKernel.invertedPageTable.remove(pid, entry.vpn);
+
+	InvertedPageTable.Frame frame =
+	    VMKernel.invertedPageTable.getFrame(entry.ppn);
+	if (frame.getNumMappings() == 0) {
+	    VMKernel.replacementPolicy.frameFreed(frame);
+	    if (VMKernel.isZeroPage(entry.ppn))
+		VMKernel.zeroPageUnmapped();
+	}
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Every page starts out invalid; nothing is read from the
+     * executable or allocated until the page is first touched.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	sharedText = UserKernel.getSharedText(executableName,
+					      numPages-stackPages-1);
+	return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>, including
+     * this process's pages in the swap file.
      */
     protected void unloadSections() {
+	boolean locked = acquirePagingLock();
+
 	super.unloadSections();
+
+	for (int slot : swapSlots.values())
+	    VMKernel.swapFile.freeSlot(slot);
+	swapSlots.clear();
+
+	releasePagingLock(locked);
     }    
 
+    /**
+     * Make the specified non-resident virtual page resident. Pages that were
+     * swapped out are read back from the swap file. Other initialized pages
+     * of the program are loaded from the executable, and uninitialized data,
+     * stack and argument pages are mapped to the shared zero page.
+     *
+     * @param	vpn	the virtual page that faulted.
+     * @return	<tt>true</tt> if the page is now valid.
+     */
+    protected boolean handlePageFault(int vpn) {
+	boolean locked = acquirePagingLock();
+	boolean success = loadPage(vpn);
+	releasePagingLock(locked);
+
+	return success;
+    }
+
+    private boolean loadPage(int vpn) {
+	allocationVPN = vpn;
+
+	if (vpn < 0 || vpn >= numPages)
+	    return super.handlePageFault(vpn);
+
+	Lib.debug(dbgVM, "\tpage fault on vpn " + vpn);
+
+	// without a TLB, the processor has already counted the fault
+	if (Machine.processor().hasTLB())
+	    Machine.countKernelEvent(Stats.EventPageFault, 1);
+
+	// widen the read-ahead window while faults keep moving forward, but
+	// never so far that a run would push out most of memory
+	if (vpn == nextFaultVPN) {
+	    int maxWindow = Machine.processor().getNumPhysPages() / 4;
+	    readAheadWindow = Math.max(1, Math.min(readAheadWindow*2,
+						   Math.min(clusterSize, maxWindow)));
+	}
+	else
+	    readAheadWindow = 1;
+
+	Integer slot = swapSlots.get(vpn);
+	if (slot != null)
+	    return swapIn(vpn, slot);
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    int spn = vpn - section.getFirstVPN();
+	    if (spn >= 0 && spn < section.getLength()) {
+		// uninitialized data is all zeros until it is written
+		if (!section.isInitialzed()) {
+		    nextFaultVPN = vpn+1;
+		    return loadZeroPage(vpn);
+		}
+
+		if (!loadSectionPage(section, spn))
+		    return false;
+
+		readAhead(section, spn+1);
+		return true;
+	    }
+	}
+
+	nextFaultVPN = vpn+1;
+	return loadZeroPage(vpn);
+    }
+
+    /**
+     * Map a page that should read as zeros to the kernel's shared zero page.
+     * The page is read-only and copy-on-write, so a private zero-filled page
+     * is only allocated when the process first writes to it.
+     *
+     * @param	vpn	the virtual page to fill.
+     * @return	<tt>true</tt> if the page is now valid, or <tt>false</tt> if
+     *		the zero page wasn't loaded and no page could be freed for it.
+     */
+    protected boolean loadZeroPage(int vpn) {
+	int ppn = VMKernel.getZeroPage();
+	if (ppn == -1)
+	    return false;
+	UserKernel.referencePage(ppn);
+
+	TranslationEntry entry = pageTable.get(vpn);
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.readOnly = true;
+	entry.used = false;
+	entry.dirty = false;
+	copyOnWrite.set(vpn);
+	pageLoaded(entry);
+	return true;
+    }
+
+    /**
+     * Read a swapped-out page back in, along with as many of the following
+     * pages as fit in the read-ahead window and sit in the following slots.
+     */
+    private boolean swapIn(int vpn, int slot) {
+	int ppn = allocatePage();
+	if (ppn == -1)
+	    return false;
+
+	int count = 1;
+	while (count < readAheadWindow && vpn+count < numPages &&
+	       !pageTable.get(vpn+count).valid &&
+	       Integer.valueOf(slot+count).equals(swapSlots.get(vpn+count)))
+	    count++;
+
+	int[] ppns = allocateReadAheadPages(ppn, vpn, count);
+
+	if (!VMKernel.swapFile.readPages(slot, ppns)) {
+	    Lib.debug(dbgVM, "\tswap in failed for vpn " + vpn);
+	    for (int i=0; i<ppns.length; i++)
+		UserKernel.releasePage(ppns[i]);
+	    return false;
+	}
+	Machine.countKernelEvent(Stats.EventPageIn, ppns.length);
+
+	if (ppns.length > 1) {
+	    Lib.debug(dbgVM, "\tclustered swap in of vpns " + vpn + "-" +
+		      (vpn+ppns.length-1));
+	}
+
+	// the slots are kept, so clean pages need not be written again
+	for (int i=0; i<ppns.length; i++) {
+	    TranslationEntry entry = pageTable.get(vpn+i);
+	    entry.ppn = ppns[i];
+	    entry.valid = true;
+	    entry.readOnly = false;
+	    entry.used = false;
+	    entry.dirty = false;
+	    pageLoaded(entry);
+	    if (i > 0)
+		prefetched(entry);
+	}
+
+	nextFaultVPN = vpn + ppns.length;
+	return true;
+    }
+
+    /**
+     * Load the pages of a section that follow a faulting page, as many as
+     * fit in the read-ahead window, with a single read of the executable.
+     * Pages that are resident, swapped out or already in the shared text
+     * cache end the run, as do memory-mapped pages.
+     *
+     * @param	section	the section being faulted in.
+     * @param	spn	the first page after the faulting one.
+     */
+    private void readAhead(CoffSection section, int spn) {
+	int vpn = section.getFirstVPN() + spn;
+	nextFaultVPN = vpn;
+
+	int count = 0;
+	while (count+1 < readAheadWindow && spn+count < section.getLength()) {
+	    int next = vpn+count;
+	    if (pageTable.get(next).valid || swapSlots.containsKey(next) ||
+		sharedText.getPage(next) != -1 || findMemoryMap(next) != null)
+		break;
+	    count++;
+	}
+	if (count == 0)
+	    return;
+
+	int[] ppns = allocateReadAheadPages(-1, vpn, count);
+	if (ppns.length == 0)
+	    return;
+
+	Lib.debug(dbgVM, "\treading ahead vpns " + vpn + "-" +
+		  (vpn+ppns.length-1));
+
+	section.loadPages(spn, ppns);
+
+	for (int i=0; i<ppns.length; i++) {
+	    TranslationEntry entry = pageTable.get(vpn+i);
+	    entry.readOnly = section.isReadOnly();
+	    if (entry.readOnly)
+		sharedText.addPage(vpn+i, ppns[i]);
+
+	    entry.ppn = ppns[i];
+	    entry.valid = true;
+	    entry.used = false;
+	    pageLoaded(entry);
+	    prefetched(entry);
+	}
+
+	nextFaultVPN = vpn + ppns.length;
+    }
+
+    /**
+     * Gather physical pages for a clustered read. Free pages are used first;
+     * after that, other pages are evicted to make room.
+     *
+     * @param	first	a page already allocated for the start of the run, or
+     *			-1 if there is none.
+     * @param	vpn	the virtual page at the start of the run.
+     * @param	count	the most pages wanted, including <i>first</i>.
+     * @return	the pages, <i>first</i> included, in order.
+     */
+    private int[] allocateReadAheadPages(int first, int vpn, int count) {
+	int[] ppns = new int[count];
+	int n = 0;
+	if (first != -1)
+	    ppns[n++] = first;
+
+	while (n < count) {
+	    // follow on from the previous page, for superpages
+	    int preferred = (n > 0) ? ppns[n-1]+1 : preferredPage(vpn);
+	    int ppn = VMKernel.allocatePage(preferred);
+	    if (ppn == -1)
+		break;
+	    ppns[n++] = ppn;
+	}
+
+	return Arrays.copyOf(ppns, n);
+    }
+
+    /**
+     * Mark a page brought in by read-ahead as not yet used, so that the
+     * replacement policy won't keep it on account of being loaded.
+     */
+    private void prefetched(TranslationEntry entry) {
+	VMKernel.invertedPageTable.getFrame(entry.ppn).used = false;
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -61,12 +748,304 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+	    break;
+	case Processor.exceptionReadOnly:
+	    handleReadOnly(processor.readRegister(Processor.regBadVAddr));
+	    break;
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Refill the TLB with the translation for the specified address. Resident
+     * pages are found in the inverted page table; anything else is faulted
+     * in first. If the aligned region around the page can be mapped as a
+     * superpage, the superpage replaces any TLB entries for pages in the
+     * region.
+     *
+     * @param	vaddr	the virtual address that missed in the TLB.
+     */
+    private void handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	TranslationEntry entry = lookupPage(vpn);
+	if (entry == null) {
+	    entry = getResidentPage(vpn, false);
+	    if (entry == null) {
+		handleFatalException(Processor.exceptionTLBMiss);
+		return;
+	    }
+	}
+
+	Processor processor = Machine.processor();
+
+	if (superpageSize > 1) {
+	    // bring the region's dirty bits up to date before checking it
+	    int base = vpn & ~(superpageSize-1);
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry cached = processor.readTLBEntry(i);
+		if (cached.valid && cached.vpn >= base &&
+		    cached.vpn < base+superpageSize)
+		    syncTranslation(cached);
+	    }
+
+	    TranslationEntry superpage = findSuperpage(vpn);
+	    if (superpage != null) {
+		for (int i=0; i<processor.getTLBSize(); i++) {
+		    TranslationEntry cached = processor.readTLBEntry(i);
+		    if (cached.valid && cached.vpn >= base &&
+			cached.vpn < base+superpageSize)
+			processor.writeTLBEntry(i, new TranslationEntry());
+		}
+
+		Lib.debug(dbgVM, "\tsuperpage at vpn " + base);
+		Machine.countKernelEvent(Stats.EventSuperpage, 1);
+		entry = superpage;
+	    }
+	}
+
+	processor.writeTLBEntry(chooseTLBVictim(), entry);
+    }
+
+    /**
+     * Build a superpage translation for the aligned region of
+     * <tt>VMProcess.superpageSize</tt> pages containing a page. Every page of
+     * the region must be resident, in consecutive physical pages, with the
+     * same protection and not copy-on-write. Writable pages must also be
+     * dirty already, since a superpage's dirty bit can't say which of its
+     * pages were written.
+     *
+     * @param	vpn	a page in the region.
+     * @return	a TLB entry mapping the whole region, or <tt>null</tt> if the
+     *		region can't be mapped as a superpage.
+     */
+    private TranslationEntry findSuperpage(int vpn) {
+	if (superpageSize == 1)
+	    return null;
+
+	int base = vpn & ~(superpageSize-1);
+	TranslationEntry first = pageTable.get(base);
+	if (first == null || !first.valid)
+	    return null;
+
+	for (int i=0; i<superpageSize; i++) {
+	    TranslationEntry entry = pageTable.get(base+i);
+	    if (entry == null || !entry.valid || entry.ppn != first.ppn+i ||
+		entry.readOnly != first.readOnly || copyOnWrite.get(base+i) ||
+		(!entry.readOnly && !entry.dirty))
+		return null;
+	}
+
+	TranslationEntry superpage =
+	    new TranslationEntry(base, first.ppn, true, first.readOnly,
+				 false, false);
+	superpage.size = superpageSize;
+	return superpage;
+    }
+
+    /**
+     * Test whether a TLB entry translates a page, either as a single page or
+     * as part of a superpage.
+     */
+    private static boolean covers(TranslationEntry cached, int vpn) {
+	return cached.valid && cached.vpn == (vpn & ~(cached.size-1));
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry that translates a page
+     * back to the page table, and invalidate those entries, including any
+     * superpage containing the page. The TLB only holds translations while
+     * this process is running.
+     *
+     * @param	vpn	the virtual page whose translation is changing.
+     */
+    private void invalidateTranslations(int vpn) {
+	Processor processor = Machine.processor();
+	if (UserKernel.currentProcess() != this || !processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry cached = processor.readTLBEntry(i);
+	    if (covers(cached, vpn)) {
+		syncTranslation(cached);
+		processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+	}
+    }
+
+    /**
+     * Find the translation of a resident page of this process in the
+     * inverted page table.
+     *
+     * @param	vpn	the virtual page to look up.
+     * @return	the page's translation entry, or <tt>null</tt> if the page is
+     *		not resident.
+     */
+    private TranslationEntry lookupPage(int vpn) {
+	return VMKernel.invertedPageTable.lookup(pid, vpn);
+    }
+
+    /**
+     * Pick the TLB entry to replace on a miss. An invalid entry is used if
+     * there is one; otherwise the victim is chosen by the policy named by the
+     * <tt>nachos.conf</tt> key <tt>VMProcess.tlbReplacement</tt>
+     * (<tt>random</tt>, <tt>fifo</tt> or <tt>clock</tt>). The victim's used
+     * and dirty bits are copied to the page table before it is overwritten.
+     *
+     * @return	the number of the TLB entry to replace.
+     */
+    private int chooseTLBVictim() {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	for (int i=0; i<tlbSize; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		return i;
+	}
+
+	int victim;
+	switch (tlbReplacement) {
+	case tlbRandom:
+	default:
+	    victim = Lib.random(tlbSize);
+	    break;
+	case tlbFIFO:
+	    victim = tlbHand;
+	    tlbHand = (tlbHand+1) % tlbSize;
+	    break;
+	case tlbClock:
+	    // give each recently used entry a second chance
+	    while (true) {
+		TranslationEntry cached = processor.readTLBEntry(tlbHand);
+		if (!cached.used)
+		    break;
+
+		syncTranslation(cached);
+		cached.used = false;
+		processor.writeTLBEntry(tlbHand, cached);
+		tlbHand = (tlbHand+1) % tlbSize;
+	    }
+	    victim = tlbHand;
+	    tlbHand = (tlbHand+1) % tlbSize;
+	    break;
+	}
+
+	syncTranslation(processor.readTLBEntry(victim));
+	return victim;
+    }
+
+    /**
+     * Handle a write to a page that is read-only in the TLB. If the page is
+     * copy-on-write, or was already made writable by the kernel, the TLB
+     * entry is refreshed from the page table.
+     *
+     * @param	vaddr	the virtual address that was written.
+     */
+    private void handleReadOnly(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	TranslationEntry entry = getResidentPage(vpn, true);
+	if (entry == null) {
+	    handleFatalException(Processor.exceptionReadOnly);
+	    return;
+	}
+
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry cached = processor.readTLBEntry(i);
+	    if (covers(cached, vpn)) {
+		syncTranslation(cached);
+		processor.writeTLBEntry(i, entry);
+		break;
+	    }
+	}
+    }
+
+    private static boolean acquirePagingLock() {
+	if (VMKernel.pagingLock.isHeldByCurrentThread())
+	    return false;
+
+	VMKernel.pagingLock.acquire();
+	return true;
+    }
+
+    private static void releasePagingLock(boolean acquired) {
+	if (acquired)
+	    VMKernel.pagingLock.release();
+    }
+
+    /**
+     * Merge the used and dirty bits of a TLB entry into the page table. The
+     * bits of a superpage are merged into every page it maps.
+     */
+    private void syncTranslation(TranslationEntry cached) {
+	for (int i=0; i<cached.size; i++) {
+	    TranslationEntry entry = pageTable.get(cached.vpn+i);
+	    if (entry != null && entry.valid && entry.ppn == cached.ppn+i) {
+		entry.used |= cached.used;
+		entry.dirty |= cached.dirty;
+
+		InvertedPageTable.Frame frame =
+		    VMKernel.invertedPageTable.getFrame(entry.ppn);
+		frame.used |= cached.used;
+		frame.dirty |= cached.dirty;
+	    }
+	}
+    }
+
+    /** The TLB contents saved by the last context switch away from this
+     * process. */
+    private TranslationEntry[] savedTLB = null;
+
+    /** The swap slot holding each page that has been swapped out. */
+    private HashMap<Integer, Integer> swapSlots = new HashMap<Integer, Integer>();
+
+    /** The virtual page the next allocated physical page is for. */
+    private int allocationVPN = -1;
+
+    /** The page that would continue a run of sequential faults. */
+    private int nextFaultVPN = -1;
+    /** The number of pages to bring in on the next fault. */
+    private int readAheadWindow = 1;
+
+    /** The most pages read or written by one clustered swap request. */
+    private static final int clusterSize =
+	Math.max(1, Config.getInteger("VMProcess.clusterSize", 8));
+
+    /**
+     * The number of pages in a superpage, given by the <tt>nachos.conf</tt>
+     * key <tt>VMProcess.superpageSize</tt>. 1, the default, disables
+     * superpages.
+     */
+    private static final int superpageSize =
+	Config.getInteger("VMProcess.superpageSize", 1);
+    static {
+	Lib.assertTrue(superpageSize > 0 &&
+		       (superpageSize & (superpageSize-1)) == 0,
+		       "bad value for VMProcess.superpageSize");
+    }
+
+    private static final int tlbRandom = 0, tlbFIFO = 1, tlbClock = 2;
+    private static int tlbReplacement = tlbClock;
+    static {
+	String policy = Config.getString("VMProcess.tlbReplacement", "clock");
+	if (policy.equals("random"))
+	    tlbReplacement = tlbRandom;
+	else if (policy.equals("fifo"))
+	    tlbReplacement = tlbFIFO;
+	else if (!policy.equals("clock"))
+	    Lib.assertNotReached("bad value for VMProcess.tlbReplacement");
+    }
+    /** The next TLB entry considered by the FIFO and clock policies. */
+    private static int tlbHand = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
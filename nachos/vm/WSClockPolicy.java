@@ -0,0 +1,101 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Evicts pages with the WSClock algorithm. Like the clock algorithm, the
+ * hand sweeps the frames and clears used bits, but each frame also records
+ * the time it was last seen used. A frame that hasn't been used within the
+ * working set window, given by the <tt>nachos.conf</tt> key
+ * <tt>WSClockPolicy.window</tt> (in ticks), is outside the working set and
+ * may be evicted. Clean frames are preferred, since they can be evicted
+ * without being written out.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+	lastUsed = new long[Machine.processor().getNumPhysPages()];
+	window = Config.getInteger("WSClockPolicy.window", 10000);
+    }
+
+    public void frameLoaded(InvertedPageTable.Frame frame) {
+	lastUsed[frame.ppn] = Machine.timer().getTime();
+    }
+
+    public void frameFreed(InvertedPageTable.Frame frame) {
+    }
+
+    public void timerInterrupt() {
+    }
+
+    /**
+     * Sweep the frames for a page outside the working set. The first sweep
+     * only accepts clean pages. If no page is outside the working set, the
+     * evictable page that was used least recently is chosen.
+     *
+     * @return	the frame to evict, or <tt>null</tt> if no frame can be
+     *		evicted.
+     */
+    public InvertedPageTable.Frame chooseVictim() {
+	int numPhysPages = lastUsed.length;
+	long now = Machine.timer().getTime();
+
+	InvertedPageTable.Frame oldest = null;
+	InvertedPageTable.Frame oldestDirty = null;
+
+	for (int i=0; i<numPhysPages; i++) {
+	    InvertedPageTable.Frame frame =
+		VMKernel.invertedPageTable.getFrame(hand);
+	    hand = (hand+1) % numPhysPages;
+
+	    if (!VMKernel.canEvict(frame))
+		continue;
+
+	    if (frame.testAndClearUsed()) {
+		lastUsed[frame.ppn] = now;
+		continue;
+	    }
+
+	    boolean old = now - lastUsed[frame.ppn] > window;
+	    if (!frame.isDirty()) {
+		if (old)
+		    return frame;
+		if (oldest == null || lastUsed[frame.ppn] < lastUsed[oldest.ppn])
+		    oldest = frame;
+	    }
+	    else if (oldestDirty == null ||
+		     lastUsed[frame.ppn] < lastUsed[oldestDirty.ppn]) {
+		oldestDirty = frame;
+	    }
+	}
+
+	// an old dirty page still beats evicting part of the working set
+	if (oldestDirty != null && now - lastUsed[oldestDirty.ppn] > window)
+	    return oldestDirty;
+	if (oldest != null)
+	    return oldest;
+	if (oldestDirty != null)
+	    return oldestDirty;
+
+	// everything was used during the sweep; fall back to plain clock
+	for (int i=0; i<numPhysPages; i++) {
+	    InvertedPageTable.Frame frame =
+		VMKernel.invertedPageTable.getFrame(hand);
+	    hand = (hand+1) % numPhysPages;
+
+	    if (VMKernel.canEvict(frame))
+		return frame;
+	}
+
+	return null;
+    }
+
+    /** The time each frame was last seen used. */
+    private long[] lastUsed;
+    /** The working set window, in ticks. */
+    private long window;
+    /** The next frame to be considered. */
+    private int hand = 0;
+}